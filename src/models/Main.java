@@ -2,11 +2,20 @@ package models;
 
 import models.dummy.Dummy;
 import models.glove.Glove;
+import models.glove.MatrixCache;
+import models.glove.Merge;
+import models.glove.MergeLoop;
+import models.glove.Pruning;
+import models.glove.RowEngine;
 import models.klt.KLT;
+import models.klt.KLTMerge;
+import models.klt.RectangleCache;
 import models.mixzone.MixZone;
 import shared.FileOutput;
+import shared.Parallel;
 import spatial.ComplexPoint;
 import spatial.Grid;
+import spatial.GridSnapshot;
 import spatial.Trajectory;
 import shared.FileInput;
 import shared.Utils;
@@ -50,10 +59,34 @@ public class Main {
         final float radius = Float.parseFloat(props.getProperty("radius"));
         final int min_trj_length = Integer.parseInt(props.getProperty("min_length"));
         final int max_mz = Integer.parseInt(props.getProperty("num_mixzones"));
+        final int threads = Integer.parseInt(props.getProperty("threads", "0"));
+        final int partners = Integer.parseInt(props.getProperty("candidate_partners", "0"));
+        final String matrixCache = props.getProperty("matrix_cache", "");
+        final String mergeEngine = props.getProperty("merge_engine", "queue");
+        final int rowPartners = Integer.parseInt(props.getProperty("row_partners", "8"));
+        final int mergeBatch = Integer.parseInt(props.getProperty("merge_batch", "1"));
+        final String kltExpansion = props.getProperty("klt_expansion", "linear");
+        final int rectangleCache = Integer.parseInt(props.getProperty("rectangle_cache", "65536"));
+        final String gridSnapshot = props.getProperty("grid_snapshot", "");
+        final boolean strictGreedy = props.getProperty("strict_greedy", "true").equals("true");
+        final int parallelMerge = Integer.parseInt(props.getProperty("parallel_merge", "2000"));
+        final String seed = props.getProperty("seed", "").trim();
         final float step = 0.001f; // to build grid (the paper used base stations as area)
 
+        Parallel.setThreads(threads);   // the worker pool shared by all parallel stages
+
         if(model.equalsIgnoreCase("glove") || model.equalsIgnoreCase("klt")) {
             ComplexPoint.needDelta = true;   // the initialization of deltaSecond and deltaLongitude, deltaLatitude
+            Pruning.partners = partners;     // 0 computes the full stretch matrix
+            MatrixCache.folder = matrixCache;   // empty recomputes the stretch matrix in every run
+            MatrixCache.source = inputFilename;
+            MergeLoop.engine = mergeEngine;
+            RowEngine.cached = Math.max(rowPartners, 1);   // only used by the rows engine
+            MergeLoop.batch = mergeBatch;       // 1 merges the pairs one by one
+            MergeLoop.strictGreedy = strictGreedy;
+            Merge.parallelFrom = parallelMerge;     // the length of the longer trajectory
+            KLTMerge.expansion = kltExpansion;     // only used by KLT
+            RectangleCache.capacity = rectangleCache;
         }
 
         /* ------------------------------------- */
@@ -69,6 +102,7 @@ public class Main {
         Grid grid = null;
         if(model.equalsIgnoreCase("dummy") || model.equalsIgnoreCase("klt")) {
             System.out.println("[PROGRESS] build grid based on Beijing POIs ...");
+            GridSnapshot.folder = gridSnapshot;     // empty parses the POI file in every run
             grid = FileInput.readBeijingPOIs(poiFilename, step, step);
         }
 
@@ -77,6 +111,7 @@ public class Main {
         Vector<Trajectory> outputTrajectories = new Vector<>();
         if(model.equalsIgnoreCase("mixzone")) {
             outputFilePrefix += radius + "_" + max_mz;
+            MixZone.seed = seed.isEmpty() ? null : Long.parseLong(seed);   // empty gives new pseudonyms in every run
             MixZone.execute(trajectories, radius, max_mz, min_trj_length, step, step, roadNetworkFilename, outputTrajectories);
         }
         else if (model.equalsIgnoreCase("dummy")) {
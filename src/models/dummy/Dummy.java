@@ -307,12 +307,13 @@ public class Dummy {
         Vector<Set<SimplePoint>> candidates = new Vector<>();
         final int bound = Math.max(min_anchor_points, loc_anonymity);
         Random rm = new Random();
+        final long[] cells = realTrj.get_gridIds(grid);
         for (int i = 0, len = realTrj.get_length(); i < len; i++) {
             ComplexPoint p_cur = realTrj.get_point_by_idx(i);
             Set<SimplePoint> candi = new HashSet<>();
 
             if (!EL[i]) {    // we always generate enough dummy for the first point
-                Vector<Long> gids = grid.get_gridIds_by_lnglat(p_cur.getLongitude(), p_cur.getLatitude());
+                Vector<Long> gids = cells[i] == -1 ? null : grid.surrounding(cells[i], true);
                 if (gids != null) {     // if gids == null, this point is out of grid range
                     /* v2: each grid cell will have several qualified candidates */
 
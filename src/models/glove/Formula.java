@@ -15,15 +15,18 @@ public class Formula {
     // formula 10
     public static TrajectoryPair computeStretch(Trajectory trjA, Trajectory trjB) {
         TrajectoryPair pair = new TrajectoryPair(trjA.get_trajectoryId(), trjB.get_trajectoryId());
+        pair.setValue(stretchEffort(trjA, trjB));   // the average of the efforts
+        return pair;
+    }
+
+    // the value of formula 10 without allocating a pair
+    public static float stretchEffort(Trajectory trjA, Trajectory trjB) {
         int mA = trjA.get_length();
         int mB = trjB.get_length();
-        int nA = trjA.isMerged() ? trjA.get_mergedIds().size() : 1;
-        int nB = trjB.isMerged() ? trjB.get_mergedIds().size() : 1;
-        float deltaAB = mA > mB ? Formula.minStretchEffort(trjA.get_pointSeq(), trjB.get_pointSeq(), nA, nB) :
+        int nA = trjA.isMerged() ? trjA.get_mergedNum() : 1;
+        int nB = trjB.isMerged() ? trjB.get_mergedNum() : 1;
+        return mA > mB ? Formula.minStretchEffort(trjA.get_pointSeq(), trjB.get_pointSeq(), nA, nB) :
                 Formula.minStretchEffort(trjB.get_pointSeq(), trjA.get_pointSeq(), nB, nA);
-
-        pair.setValue(deltaAB);   // the average of the efforts
-        return pair;
     }
 
     private static float minStretchEffort(List<ComplexPoint> longer, List<ComplexPoint> shorter, int nL, int nS) {
@@ -31,12 +34,9 @@ public class Formula {
         // find the sample at minimum stretch effort in the shorter fingerprint
         float sum = 0;
 
+        NearestCost nearest = new NearestCost(shorter);
         for (ComplexPoint pl : longer) {
-            double min = Double.MAX_VALUE;
-            for(ComplexPoint ps: shorter){
-                float cost = computeCost(pl, ps, nL, nS);
-                min = Math.min(cost, min);
-            }
+            double min = nearest.minCost(pl, nL, nS);
             sum += min;
         }
         return sum / longer.size();
@@ -49,6 +49,37 @@ public class Formula {
         return spaceSide + timeSide;
     }
 
+    // formula 1 between point a and each buffered point in [from, to), written into costs[0, to - from)
+    // the same float operations as computeCost in the same order, so the results are bit-identical,
+    // a scalar loop over flat arrays: no pointer chasing and no call per pair, nothing is vectorized
+    public static void computeCosts(final ComplexPoint a, final int nA, final int nB,
+                                    final PointBuffer b, final int from, final int to, float[] costs) {
+        final float aLng = a.getLongitude(), aLat = a.getLatitude();
+        final float aLooseLng = a.get_looseLongitude(), aLooseLat = a.get_looseLatitude();
+        final long aTime = a.get_exactTime(), aLooseTime = a.get_looseTime();
+        final int nAB = nA + nB;
+        for (int i = from; i < to; i++) {
+            final float bLng = b.lng[i], bLat = b.lat[i], bLooseLng = b.looseLng[i], bLooseLat = b.looseLat[i];
+            final float minLng = Math.min(aLng, bLng), minLat = Math.min(aLat, bLat);
+            final float maxLooseLng = Math.max(aLooseLng, bLooseLng), maxLooseLat = Math.max(aLooseLat, bLooseLat);
+            final float left_ab = (aLng - minLng) + (aLat - minLat);
+            final float right_ab = (maxLooseLng - aLooseLng) + (maxLooseLat - aLooseLat);
+            final float left_ba = (bLng - minLng) + (bLat - minLat);
+            final float right_ba = (maxLooseLng - bLooseLng) + (maxLooseLat - bLooseLat);
+            final float space = ((left_ab + right_ab) * nA) / nAB + ((left_ba + right_ba) * nB) / nAB;
+            final float spaceSide = Omega_Sigma_Tau * (space <= MAX_SPACE ? space / MAX_SPACE : 1f);
+
+            final long bTime = b.time[i], bLooseTime = b.looseTime[i];
+            final long early = Math.min(aTime, bTime), late = Math.max(aLooseTime, bLooseTime);
+            final float tl_ab = (aTime - early) / 60f, tr_ab = (late - aLooseTime) / 60f;
+            final float tl_ba = (bTime - early) / 60f, tr_ba = (late - bLooseTime) / 60f;
+            final float time = ((tl_ab + tr_ab) * nA) / nAB + ((tl_ba + tr_ba) * nB) / nAB;
+            final float timeSide = Omega_Sigma_Tau * (time <= MAX_MINUTE ? time / MAX_MINUTE : 1);
+
+            costs[i - from] = spaceSide + timeSide;
+        }
+    }
+
     // formula 2 & 4
     private static float spatialGeneralize(ComplexPoint a, ComplexPoint b, int nA, int nB) {
         float left_ab  = leftStretch_space(a ,b);
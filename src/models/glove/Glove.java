@@ -1,7 +1,9 @@
 package models.glove;
 
-import shared.Utils;
+import shared.Parallel;
 import spatial.Trajectory;
+
+import java.nio.file.Path;
 import java.util.*;
 
 public class Glove {
@@ -20,10 +22,11 @@ public class Glove {
             newTrajectories.add(new Trajectory(trj));
 
         /* Computing stretch matrix ahead */
-        Queue<TrajectoryPair> stretchMatrix = new PriorityQueue<>();
-        computeMatrix(newTrajectories, trj_num, stretchMatrix);
+        MergeQueue stretchMatrix = new MergeQueue();
+        Pruning pruning = Pruning.create(newTrajectories, trj_num);   // null if all pairs are needed
+        computeMatrix(newTrajectories, trj_num, stretchMatrix, pruning);
 
-        mergeTrajectorySet(newTrajectories, trj_num, k_anonymity, stretchMatrix);
+        mergeTrajectorySet(newTrajectories, trj_num, k_anonymity, stretchMatrix, pruning);
         stretchMatrix.clear();
         stretchMatrix = null;
 
@@ -38,48 +41,15 @@ public class Glove {
     }
 
     private static void mergeTrajectorySet(Vector<Trajectory> newTrajectories, final int trj_num, final int k_anonymity,
-                                           Queue<TrajectoryPair> stretchMatrix) {
+                                           MergeQueue stretchMatrix, Pruning pruning) {
         Set<Integer> toBeAnonymized = new HashSet<>();
         for (int i = 0; i < trj_num; i++) {
             toBeAnonymized.add(newTrajectories.get(i).get_trajectoryId());
         }
 
-        int nextId = trj_num;
-        int k = k_anonymity;
         System.out.print("[PROGRESS] Merging trajectories based on pre-computed costs: ");
         long startTimer = System.currentTimeMillis();
-        while (toBeAnonymized.size() >= k && !stretchMatrix.isEmpty()) {
-
-            TrajectoryPair minPair = stretchMatrix.poll(); // the pair with currently minimum value of stretch effort
-
-            final int idA = minPair.getLeader();
-            final int idB = minPair.getPartner();
-
-            // a & b is going to be merged
-            Trajectory a = newTrajectories.get(idA), b = newTrajectories.get(idB);
-            if (a == null || b == null) {   // one of the member has been merged
-                continue;
-            }
-
-            Trajectory m = Merge.mergeTrace(a, b);
-            m.set_trajectoryId(nextId++);
-            newTrajectories.add(m);
-
-            // update the status of a and b
-            newTrajectories.set(idA, null); toBeAnonymized.remove(idA);
-            newTrajectories.set(idB, null); toBeAnonymized.remove(idB);
-
-            // all relevant pairs should be erased
-            stretchMatrix.removeIf(pair -> pair.getLeader() == idA || pair.getLeader() == idB
-                    || pair.getPartner() == idA || pair.getPartner() == idB);
-
-            // new trajectory should be computed with others for further merging
-            boolean reduceK = updateMatrix(m, k, newTrajectories, toBeAnonymized, stretchMatrix);
-            if (reduceK) {
-                k--;
-            }
-            Utils.showProgress(trj_num - toBeAnonymized.size(), trj_num, "glove-merge");
-        }
+        MergeLoop.run(newTrajectories, trj_num, k_anonymity, toBeAnonymized, stretchMatrix, pruning, Merge::mergeTrace, false);
         System.out.println("100%");
 
         long timecost = System.currentTimeMillis() - startTimer;
@@ -92,47 +62,106 @@ public class Glove {
     }
 
     public static boolean updateMatrix(final Trajectory newTrj, final int k_anonymity, final Vector<Trajectory> newTrajectories,
-                                       Set<Integer> toBeAnonymized, Queue<TrajectoryPair> stretchMatrix) {
-        if (newTrj.get_K() < k_anonymity) {
-            toBeAnonymized.add(newTrj.get_trajectoryId());
-            if (toBeAnonymized.size() >= k_anonymity) {
-                for (int id : toBeAnonymized) {
-                    if (id != newTrj.get_trajectoryId()) {
-                        Trajectory trj = newTrajectories.get(id);
-                        if (trj != null) {
-                            TrajectoryPair stretch = Formula.computeStretch(newTrj, trj);
-                            stretchMatrix.add(stretch);
-                        }
-                    }
-                }
-            }
-            else {
+                                       Set<Integer> toBeAnonymized, MergeQueue stretchMatrix, Pruning pruning) {
+        switch (admit(newTrj, k_anonymity, toBeAnonymized, pruning)) {
+            case NEED_ROW:
+                int[] ids = rowCandidates(newTrj, newTrajectories, toBeAnonymized, pruning);
+                addRow(newTrj, ids, computeRow(newTrj, ids, newTrajectories), stretchMatrix);
+                return false;
+            case REDUCE_K:
                 return true;
-            }
+            default:
+                return false;
         }
-        return false;
+    }
+
+    // how a newly merged trajectory is admitted: already k-anonymized, to be paired with the others,
+    // or to be paired later once k is relaxed
+    static final int ANONYMIZED = 0, NEED_ROW = 1, REDUCE_K = 2;
+
+    // a trajectory joining toBeAnonymized is registered to the pruning at once, as a later row or refill may pair it
+    static int admit(final Trajectory newTrj, final int k_anonymity, Set<Integer> toBeAnonymized, Pruning pruning) {
+        if (newTrj.get_K() >= k_anonymity) {
+            return ANONYMIZED;
+        }
+        toBeAnonymized.add(newTrj.get_trajectoryId());
+        if (pruning != null) {
+            pruning.register(newTrj);
+        }
+        return toBeAnonymized.size() >= k_anonymity ? NEED_ROW : REDUCE_K;
+    }
+
+    // the alive trajectories to be paired with a newly merged one, only the older ones (smaller ids),
+    // with pruning only the best partners in terms of the lower bound
+    static int[] rowCandidates(final Trajectory newTrj, final Vector<Trajectory> newTrajectories,
+                               final Set<Integer> toBeAnonymized, Pruning pruning) {
+        final int self = newTrj.get_trajectoryId();
+        int[] ids = toBeAnonymized.stream().filter(id -> id < self && newTrajectories.get(id) != null)
+                .mapToInt(Integer::intValue).sorted().toArray();
+        return pruning == null ? ids : pruning.select(newTrj, ids);
+    }
+
+    // the stretch efforts between the new trajectory and the candidates, a parallel map over the candidates
+    static float[] computeRow(final Trajectory newTrj, final int[] ids, final Vector<Trajectory> newTrajectories) {
+        float[] row = new float[ids.length];
+        Parallel.forEach(0, ids.length, x -> row[x] = Formula.stretchEffort(newTrj, newTrajectories.get(ids[x])));
+        return row;
+    }
+
+    static void addRow(final Trajectory newTrj, final int[] ids, final float[] row, MergeQueue stretchMatrix) {
+        final int first = stretchMatrix.reserve(ids.length);   // one bulk insert, sifted lazily on the next poll
+        for (int x = 0; x < ids.length; x++) {
+            stretchMatrix.put(first + x, newTrj.get_trajectoryId(), ids[x], row[x]);
+        }
+        stretchMatrix.seal(first);
+    }
+
+    // with pruning, the remaining trajectories may lose all their candidate partners before being anonymized,
+    // then the candidate pairs among them are computed again
+    public static boolean refillMatrix(final Vector<Trajectory> newTrajectories, final Set<Integer> toBeAnonymized,
+                                       MergeQueue stretchMatrix, Pruning pruning) {
+        if (pruning == null || toBeAnonymized.size() < 2) {
+            return false;
+        }
+        MatrixEngine.computeCandidates(newTrajectories, aliveIds(newTrajectories, toBeAnonymized), pruning, stretchMatrix);
+        return !stretchMatrix.isEmpty();
+    }
+
+    private static int[] aliveIds(final Vector<Trajectory> newTrajectories, final Set<Integer> toBeAnonymized) {
+        return toBeAnonymized.stream().filter(id -> newTrajectories.get(id) != null).mapToInt(Integer::intValue).sorted().toArray();
     }
 
     // compute the pairwise merge cost
     // !!! Note that this step is very time-consuming
     public static void computeMatrix(final Vector<Trajectory> newTrajectories, final int total_trj,
-                                     Queue<TrajectoryPair> stretchMatrix) {
+                                     MergeQueue stretchMatrix, Pruning pruning) {
+        if (MergeLoop.rowEngine()) {    // it computes the best partners of each trajectory by itself
+            return;
+        }
         System.out.print("[PROGRESS] Computing Trajectory-wise merge cost matrix: ");
 
         long startTimer = System.currentTimeMillis();
-        for (int i = 0; i < total_trj - 1; i++) {
-            Trajectory trj = newTrajectories.get(i);
-            for (int j = i + 1; j < total_trj; j++) {
-                TrajectoryPair pair = Formula.computeStretch(trj, newTrajectories.get(j));
-                stretchMatrix.add(pair);
+        Path cacheFile = MatrixCache.locate(total_trj);     // null if the cache is disabled
+        if (MatrixCache.load(cacheFile, total_trj, stretchMatrix)) {
+            System.out.printf("%d pairs loaded from %s..", stretchMatrix.size(), cacheFile);
+        }
+        else {
+            if (pruning == null) {
+                MatrixEngine.computeMatrix(newTrajectories, total_trj, stretchMatrix);    // tiles are computed in parallel
+            }
+            else {
+                int[] ids = new int[total_trj];
+                Arrays.setAll(ids, i -> i);
+                MatrixEngine.computeCandidates(newTrajectories, ids, pruning, stretchMatrix);
+                System.out.printf("%d candidate pairs (best %d partners per trajectory)..", stretchMatrix.size(), Pruning.partners);
             }
-            if(i > 0)
-                Utils.showProgress(i, total_trj, "");
+            MatrixCache.store(cacheFile, total_trj, stretchMatrix);
         }
         System.out.println("100%");
 
         long timecost = System.currentTimeMillis() - startTimer;
-        System.out.printf("[TIME-COST] for computing stretch matrix: %.3f s, %.3f min\n\n", timecost / 1000.0, timecost / (1000.0 * 60));
+        System.out.printf("[TIME-COST] for computing stretch matrix with %d threads: %.3f s, %.3f min\n\n",
+                Parallel.getThreads(), timecost / 1000.0, timecost / (1000.0 * 60));
     }
 }
 
@@ -0,0 +1,116 @@
+package models.glove;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// the initial stretch matrix persisted on disk, so that a parameter sweep (k, l, t) over the same input
+// computes it only once; later runs map the file and bulk-load the pairs into the queue
+// the file name is a digest of the input file and everything else the matrix depends on
+public class MatrixCache {
+
+    public static String folder = "";   // where the matrix files are kept, empty disables the cache
+    public static String source = "";   // the input trajectory file
+
+    private static final int MAGIC = 0x47534d31;    // "GSM1"
+    private static final int VERSION = 1;          // bump it whenever formula 1 or the point deltas change
+    private static final int HEADER = 16;          // magic, version, # of trajectories, # of pairs
+    private static final int CHUNK = 1 << 26;      // # of elements mapped at a time, below the 2GB limit of a mapping
+
+    // true if the matrix of these trajectories has been loaded into the queue
+    public static boolean load(final Path file, final int total_trj, MergeQueue stretchMatrix) {
+        if (file == null || !Files.isRegularFile(file)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            int num = header.getInt(8), count = header.getInt(12);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || num != total_trj
+                    || count < 0 || channel.size() != HEADER + 12L * count) {
+                System.out.println("[ALERT] invalid matrix cache file " + file + ", it is recomputed");
+                return false;
+            }
+            final int first = stretchMatrix.reserve(count);
+            final long[] pairs = stretchMatrix.pairs();
+            final float[] values = stretchMatrix.values();
+            for (int from = 0; from < count; from += CHUNK) {
+                int len = Math.min(CHUNK, count - from);
+                channel.map(FileChannel.MapMode.READ_ONLY, HEADER + 8L * from, 8L * len).asLongBuffer().get(pairs, first + from, len);
+                channel.map(FileChannel.MapMode.READ_ONLY, HEADER + 8L * count + 4L * from, 4L * len).asFloatBuffer().get(values, first + from, len);
+            }
+            stretchMatrix.seal(first);
+            return true;
+        } catch (IOException e) {
+            System.out.println("[ERROR] cannot read the matrix cache " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // keep the freshly computed matrix for later runs, written aside and renamed so a reader never sees half a file
+    public static void store(final Path file, final int total_trj, final MergeQueue stretchMatrix) {
+        if (file == null) {
+            return;
+        }
+        final long[] pairs = stretchMatrix.pairs();
+        final float[] values = stretchMatrix.values();
+        final int count = stretchMatrix.size();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).putInt(total_trj).putInt(count);
+                header.flip();
+                channel.write(header, 0);
+                for (int from = 0; from < count; from += CHUNK) {
+                    int len = Math.min(CHUNK, count - from);
+                    channel.map(FileChannel.MapMode.READ_WRITE, HEADER + 8L * from, 8L * len).asLongBuffer().put(pairs, from, len);
+                    channel.map(FileChannel.MapMode.READ_WRITE, HEADER + 8L * count + 4L * from, 4L * len).asFloatBuffer().put(values, from, len);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("[ERROR] cannot write the matrix cache " + file + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // the cache file of the current input, null if the cache is disabled or the input file cannot be read
+    public static Path locate(final int total_trj) {
+        if (folder == null || folder.isEmpty()) {
+            return null;
+        }
+        try (InputStream in = Files.newInputStream(Paths.get(source))) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            for (int len; (len = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, len);
+            }
+            String setting = String.format("%d|%d|%s|%s|%s|%d", VERSION, total_trj, Float.toString(Formula.Omega_Sigma_Tau),
+                    Float.toString(Formula.MAX_SPACE), Float.toString(Formula.MAX_MINUTE), Pruning.partners);
+            digest.update(setting.getBytes());
+
+            StringBuilder name = new StringBuilder("matrix_");
+            byte[] hash = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return Paths.get(folder, name.append(".bin").toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("[ERROR] the matrix cache is skipped: " + e.getMessage());
+            return null;
+        }
+    }
+}
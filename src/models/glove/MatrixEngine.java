@@ -0,0 +1,99 @@
+package models.glove;
+
+import shared.Parallel;
+import shared.Utils;
+import spatial.Trajectory;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+// compute the upper triangle of the stretch matrix tile by tile on the shared worker pool
+public class MatrixEngine {
+
+    private static final int TILE = 32;   // # of rows (and columns) covered by one tile
+    private static final int PROGRESS_SLICES = 20;    // as in Utils.showProgress
+
+    public static void computeMatrix(final Vector<Trajectory> trajectories, final int total_trj,
+                                     MergeQueue stretchMatrix) {
+        final int blocks = (total_trj + TILE - 1) / TILE;
+
+        // tile (bi, bj) with bi <= bj covers rows [bi*TILE, ...) and columns [bj*TILE, ...)
+        final int tileNum = blocks * (blocks + 1) / 2;
+        final int[] tileRow = new int[tileNum];
+        final int[] tileCol = new int[tileNum];
+        for (int bi = 0, t = 0; bi < blocks; bi++) {
+            for (int bj = bi; bj < blocks; bj++, t++) {
+                tileRow[t] = bi;
+                tileCol[t] = bj;
+            }
+        }
+
+        // every pair (i, j) owns the slot of its row-major position, so tiles can write the queue directly
+        final int first = stretchMatrix.reserve((long) total_trj * (total_trj - 1) / 2);
+        // the tiles run slice by slice, the progress is shown by this thread in between
+        final int slice = Math.max(1, (tileNum + PROGRESS_SLICES - 1) / PROGRESS_SLICES);
+        for (int from = 0; from < tileNum; from += slice) {
+            Parallel.forEach(from, Math.min(from + slice, tileNum), t -> {
+                final int rowFrom = tileRow[t] * TILE, rowTo = Math.min(rowFrom + TILE, total_trj);
+                final int colFrom = tileCol[t] * TILE, colTo = Math.min(colFrom + TILE, total_trj);
+                for (int i = rowFrom; i < rowTo; i++) {
+                    Trajectory trj = trajectories.get(i);
+                    for (int j = Math.max(colFrom, i + 1); j < colTo; j++) {
+                        float value = Formula.stretchEffort(trj, trajectories.get(j));
+                        stretchMatrix.put(first + (int) position(i, j, total_trj), i, j, value);
+                    }
+                }
+            });
+            if (from + slice < tileNum) {
+                Utils.showProgress(from + slice, tileNum, "");
+            }
+        }
+        stretchMatrix.seal(first);
+    }
+
+    // only the candidate pairs kept by the pruning among the given ids (in ascending order) are computed
+    public static void computeCandidates(final Vector<Trajectory> trajectories, final int[] ids, final Pruning pruning,
+                                         MergeQueue stretchMatrix) {
+        long[][] rows = new long[ids.length][];
+        Parallel.forEach(0, ids.length, r -> {
+            final int id = ids[r];
+            int[] selected = pruning.select(trajectories.get(id), ids);
+            long[] keys = new long[selected.length];
+            for (int x = 0; x < selected.length; x++) {     // (smaller id, larger id), as in the full matrix
+                keys[x] = ((long) Math.min(id, selected[x]) << 32) | Math.max(id, selected[x]);
+            }
+            rows[r] = keys;
+        });
+
+        // a pair may be selected by both of its members
+        int total = 0;
+        for (long[] keys : rows) {
+            total += keys.length;
+        }
+        long[] pairs = new long[total];
+        for (int r = 0, pos = 0; r < rows.length; r++) {
+            System.arraycopy(rows[r], 0, pairs, pos, rows[r].length);
+            pos += rows[r].length;
+            rows[r] = null;
+        }
+        Arrays.sort(pairs);
+        int num = 0;
+        for (int x = 0; x < total; x++) {
+            if (num == 0 || pairs[x] != pairs[num - 1]) {
+                pairs[num++] = pairs[x];
+            }
+        }
+
+        final int first = stretchMatrix.reserve(num);
+        Parallel.forEach(0, num, x -> {
+            final int i = (int) (pairs[x] >>> 32), j = (int) pairs[x];
+            stretchMatrix.put(first + x, i, j, Formula.stretchEffort(trajectories.get(i), trajectories.get(j)));
+        });
+        stretchMatrix.seal(first);
+    }
+
+    // the row-major position of pair (i, j), i < j, in the upper triangle of an n * n matrix
+    private static long position(final int i, final int j, final int n) {
+        return (long) i * (2L * n - i - 1) / 2 + (j - i - 1);
+    }
+}
@@ -1,26 +1,30 @@
 package models.glove;
 
+import shared.Parallel;
 import spatial.ComplexPoint;
 import spatial.Trajectory;
 
 import java.util.*;
+import java.util.function.BinaryOperator;
 
 public class Merge {
 
+    public static int parallelFrom = 2000;  // # of points of the longer trajectory from which a merge runs in parallel
+
     public static Trajectory mergeTrace(Trajectory a, Trajectory b) {
         List<ComplexPoint> longer, shorter;
         int nL, nS;
         if(a.get_length() > b.get_length()){
             longer = a.get_pointSeq();
             shorter = b.get_pointSeq();
-            nL = a.isMerged() ? a.get_mergedIds().size() : 1;
-            nS = b.isMerged() ? b.get_mergedIds().size() : 1;
+            nL = a.isMerged() ? a.get_mergedNum() : 1;
+            nS = b.isMerged() ? b.get_mergedNum() : 1;
         }
         else {
             shorter = a.get_pointSeq();
             longer = b.get_pointSeq();
-            nS = a.isMerged() ? a.get_mergedIds().size() : 1;
-            nL = b.isMerged() ? b.get_mergedIds().size() : 1;
+            nS = a.isMerged() ? a.get_mergedNum() : 1;
+            nL = b.isMerged() ? b.get_mergedNum() : 1;
         }
 
         ComplexPoint[] once = mergeOnce(longer, shorter, nL, nS);
@@ -50,36 +54,64 @@ public class Merge {
 
     private static List<ComplexPoint> mergeTwice(List<ComplexPoint> unmerged, List<ComplexPoint> merged, int nL, int nS) {
         ComplexPoint[] array = mergeOnce(unmerged, merged, nL, nS);
-        for (int i = 0, idx = 0; i < array.length; i++, idx++) {
-            if (array[i] != null) {
-                merged.set(idx, array[i]);
-            } else if (merged.get(i) == null) { // no new data, and it is originally null, remove it
-                merged.remove(i);
-                idx--;  // the merged is shorter than array now
-            }
+        return replaceMerged(array, merged);
+    }
+
+    // the points of the list, each replaced by its merged one if any, in a single pass
+    // the list itself has no null, so no point is dropped
+    public static List<ComplexPoint> replaceMerged(final ComplexPoint[] array, final List<ComplexPoint> merged) {
+        List<ComplexPoint> points = new ArrayList<>(array.length);
+        for (int i = 0; i < array.length; i++) {
+            points.add(array[i] != null ? array[i] : merged.get(i));
         }
-        return merged;
+        return points;
     }
 
     private static ComplexPoint[] mergeOnce(final List<ComplexPoint> longer, final List<ComplexPoint> shorter,
                                      final int nL, final int nS) {
+        return mergeOnce(longer, shorter, nL, nS, Merge::mergePoint);
+    }
+
+    // each point of the longer list is merged into the point at minimum cost in the shorter list, null if none is merged
+    // the points of a long list are matched in parallel, and then folded in parallel per target point in their order
+    public static ComplexPoint[] mergeOnce(final List<ComplexPoint> longer, final List<ComplexPoint> shorter,
+                                           final int nL, final int nS, final BinaryOperator<ComplexPoint> merger) {
         //把长的 merge into 短的，所以合出来的结果一定是短的那条路径的长度
         int shortLen = shorter.size();
         ComplexPoint[] array = new ComplexPoint[shortLen];
-        for (ComplexPoint pl : longer) {
-            double minCost = Double.MAX_VALUE;
-            int minIdx = -1;
-            //长的或者说旧的list的一个点去和短的或者说新的轨迹的所有点比较代价
-            // compare every point in longer list with the shorter one
+        NearestCost nearest = new NearestCost(shorter);
+        if (longer.size() >= parallelFrom && Parallel.getThreads() > 1) {
+            final int[] minIdx = nearest.argmins(longer, nL, nS);
+
+            // the points grouped by their target, in the original order within a group
+            final int[] start = new int[shortLen + 1];
+            for (int idx : minIdx) {
+                start[idx + 1]++;
+            }
             for (int i = 0; i < shortLen; i++) {
-                double cost = Formula.computeCost(pl, shorter.get(i), nL, nS);
-                if (cost < minCost) {
-                    minCost = cost;
-                    minIdx = i;
-                }
+                start[i + 1] += start[i];
+            }
+            final int[] members = new int[minIdx.length];
+            final int[] next = Arrays.copyOf(start, shortLen);
+            for (int i = 0; i < minIdx.length; i++) {
+                members[next[minIdx[i]]++] = i;
             }
+
+            // the folds of different targets are independent
+            Parallel.forEach(0, shortLen, idx -> {
+                for (int e = start[idx]; e < start[idx + 1]; e++) {
+                    ComplexPoint pl = longer.get(members[e]);
+                    array[idx] = merger.apply(array[idx] == null ? shorter.get(idx) : array[idx], pl);
+                }
+            });
+            return array;
+        }
+        for (ComplexPoint pl : longer) {
+            //长的或者说旧的list的一个点去和短的或者说新的轨迹的所有点比较代价
+            // find the point in the shorter list at minimum cost, without comparing all of them
+            int minIdx = nearest.argmin(pl, nL, nS);
             // if it has been merged, merge again
-            array[minIdx] = (array[minIdx] == null) ? mergePoint(shorter.get(minIdx), pl) : mergePoint(array[minIdx], pl);
+            array[minIdx] = (array[minIdx] == null) ? merger.apply(shorter.get(minIdx), pl) : merger.apply(array[minIdx], pl);
         }
         return array;
     }
@@ -103,12 +135,15 @@ public class Merge {
         List<ComplexPoint> points = m.get_pointSeq();
         points.sort(Comparator.comparingLong(ComplexPoint::get_exactTime));     // sort by the start time of each point
 
-        //需要插点的位置和点，key是位置，value是点
-        Map<Integer, ComplexPoint> map = new TreeMap<>();
+        // the sequence is rebuilt in one pass: each point is final once it has been compared with the next one,
+        // and the middle point between them (if any) follows it
+        final int len = points.size();
+        List<ComplexPoint> reshaped = new ArrayList<>(len + (len >> 2));
         ComplexPoint one, two;
-        for (int i = 0, len = points.size(); i < len - 1; i++) {
+        for (int i = 0; i < len - 1; i++) {
             one = points.get(i);
             two = points.get(i + 1);
+            reshaped.add(one);
 
             long oneEndTime = one.get_looseTime();  //sec
             long twoStartTime = two.get_exactTime();
@@ -140,16 +175,13 @@ public class Merge {
                 final float deltaLng = (Math.max(one.get_looseLongitude(), two.get_looseLongitude()) - middleLng);
                 final float deltaLat = (Math.max(one.get_looseLatitude(), two.get_looseLatitude()) - middleLat);
 
-                ComplexPoint p = new ComplexPoint(middleLng, middleLat, middleTime, deltaLng, deltaLat, deltaSec);
-                map.put(i + 1, p); //record the position to be inserted
+                reshaped.add(new ComplexPoint(middleLng, middleLat, middleTime, deltaLng, deltaLat, deltaSec));
             }
         }
-
-        int extra = 0;
-        for(int pos: map.keySet()){
-            points.add(pos + extra, map.get(pos));
-            extra++;
+        if (len > 0) {
+            reshaped.add(points.get(len - 1));
         }
+        points = reshaped;
         m.set_pointSeq(points); // new sequence
         return m;
     }
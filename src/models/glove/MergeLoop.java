@@ -0,0 +1,150 @@
+package models.glove;
+
+import shared.Parallel;
+import shared.Utils;
+import spatial.Trajectory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.BinaryOperator;
+
+// the greedy merge loop shared by GLOVE and KLT: repeatedly merge the pair at minimum stretch effort
+// in batch mode, the next several vertex-disjoint minimum pairs are merged concurrently,
+// with strictGreedy a merged pair is only kept if the sequential loop would have merged it next (otherwise it is requeued),
+// without it the whole batch is kept and the matrix rows of the new trajectories are computed in parallel
+public class MergeLoop {
+
+    public static String engine = "queue";       // queue: the stretch matrix in a MergeQueue, rows: see RowEngine
+    public static int batch = 1;                 // # of pairs merged at a time, 1 merges them one by one
+    public static boolean strictGreedy = true;   // keep exactly the merging order of the sequential loop
+
+    public static boolean rowEngine() {
+        return engine.equalsIgnoreCase("rows");
+    }
+
+    // k-anonymity may be relaxed for the last few trajectories, the final k is returned
+    // GLOVE stops once fewer than k trajectories are left, KLT (drain) goes on until no pair is left
+    public static int run(Vector<Trajectory> newTrajectories, final int trj_num, final int k_anonymity, Set<Integer> toBeAnonymized,
+                          MergeQueue stretchMatrix, Pruning pruning, final BinaryOperator<Trajectory> merger, final boolean drain) {
+        if (rowEngine()) {
+            return RowEngine.run(newTrajectories, trj_num, k_anonymity, toBeAnonymized, merger, drain);
+        }
+        int k = k_anonymity;
+        while (goOn(drain, k, toBeAnonymized)) {
+            if (stretchMatrix.isEmpty()
+                    && (toBeAnonymized.size() < k || !Glove.refillMatrix(newTrajectories, toBeAnonymized, stretchMatrix, pruning))) {
+                break;
+            }
+            k = batch > 1 ? mergeBatch(newTrajectories, trj_num, k, toBeAnonymized, stretchMatrix, pruning, merger, drain)
+                    : mergeOne(newTrajectories, trj_num, k, toBeAnonymized, stretchMatrix, pruning, merger);
+        }
+        return k;
+    }
+
+    private static boolean goOn(final boolean drain, final int k, final Set<Integer> toBeAnonymized) {
+        return drain ? !toBeAnonymized.isEmpty() : toBeAnonymized.size() >= k;
+    }
+
+    private static int mergeOne(Vector<Trajectory> newTrajectories, final int trj_num, int k, Set<Integer> toBeAnonymized,
+                                MergeQueue stretchMatrix, Pruning pruning, final BinaryOperator<Trajectory> merger) {
+        TrajectoryPair minPair = stretchMatrix.poll(); // the pair with currently minimum value of stretch effort
+        Trajectory a = newTrajectories.get(minPair.getLeader()), b = newTrajectories.get(minPair.getPartner());
+        if (a == null || b == null) {   // one of the member has been merged
+            return k;
+        }
+        // a & b is going to be merged
+        Trajectory m = commit(merger.apply(a, b), minPair, newTrajectories, toBeAnonymized, stretchMatrix);
+        boolean reduceK = Glove.updateMatrix(m, k, newTrajectories, toBeAnonymized, stretchMatrix, pruning);
+        Utils.showProgress(trj_num - toBeAnonymized.size(), trj_num, "glove-merge");
+        return reduceK ? k - 1 : k;
+    }
+
+    private static int mergeBatch(Vector<Trajectory> newTrajectories, final int trj_num, int k, Set<Integer> toBeAnonymized,
+                                  MergeQueue stretchMatrix, Pruning pruning, final BinaryOperator<Trajectory> merger,
+                                  final boolean drain) {
+        // the next minimum pairs in polling order, a pair sharing a member with an earlier selected one is only kept aside
+        List<TrajectoryPair> polled = new ArrayList<>();
+        List<TrajectoryPair> selected = new ArrayList<>();
+        BitSet busy = new BitSet();
+        while (selected.size() < batch && !stretchMatrix.isEmpty()) {
+            TrajectoryPair pair = stretchMatrix.poll();
+            polled.add(pair);
+            if (!busy.get(pair.getLeader()) && !busy.get(pair.getPartner())) {
+                busy.set(pair.getLeader());
+                busy.set(pair.getPartner());
+                selected.add(pair);
+            }
+        }
+
+        // merges of disjoint pairs are independent, and leave their inputs untouched
+        Trajectory[] merged = new Trajectory[selected.size()];
+        Parallel.forEach(0, merged.length, i -> merged[i] = merger.apply(
+                newTrajectories.get(selected.get(i).getLeader()), newTrajectories.get(selected.get(i).getPartner())));
+
+        // commit in polling order as long as the loop would go on
+        int committed = 0;
+        List<Trajectory> needRow = new ArrayList<>();
+        while (committed < merged.length && goOn(drain, k, toBeAnonymized)) {
+            TrajectoryPair pair = selected.get(committed);
+            if (strictGreedy && committed > 0 && stretchMatrix.topBefore(pair)) {
+                break;  // a pair of the trajectories merged just now comes first
+            }
+            Trajectory m = commit(merged[committed++], pair, newTrajectories, toBeAnonymized, stretchMatrix);
+            if (strictGreedy) {
+                if (Glove.updateMatrix(m, k, newTrajectories, toBeAnonymized, stretchMatrix, pruning)) {
+                    k--;
+                }
+            }
+            else {  // the same rule as Glove.updateMatrix, the rows are computed below
+                int admitted = Glove.admit(m, k, toBeAnonymized, pruning);
+                if (admitted == Glove.NEED_ROW) {
+                    needRow.add(m);
+                } else if (admitted == Glove.REDUCE_K) {
+                    k--;
+                }
+            }
+            Utils.showProgress(trj_num - toBeAnonymized.size(), trj_num, "glove-merge");
+        }
+
+        // the pairs not merged in this round go back, unless one of their members is gone
+        for (TrajectoryPair pair : polled) {
+            if (newTrajectories.get(pair.getLeader()) != null && newTrajectories.get(pair.getPartner()) != null) {
+                stretchMatrix.add(pair);
+            }
+        }
+
+        if (!needRow.isEmpty()) {
+            // each new trajectory is paired with the older ones only, so a pair within the batch is computed once
+            int[][] ids = new int[needRow.size()][];
+            float[][] rows = new float[needRow.size()][];
+            Parallel.forEach(0, rows.length, i -> {
+                ids[i] = Glove.rowCandidates(needRow.get(i), newTrajectories, toBeAnonymized, pruning);
+                rows[i] = Glove.computeRow(needRow.get(i), ids[i], newTrajectories);
+            });
+            for (int i = 0; i < rows.length; i++) {
+                Glove.addRow(needRow.get(i), ids[i], rows[i], stretchMatrix);
+            }
+        }
+        return k;
+    }
+
+    // the merged trajectory m takes the next id and replaces both members of the pair
+    private static Trajectory commit(Trajectory m, final TrajectoryPair pair, Vector<Trajectory> newTrajectories,
+                                     Set<Integer> toBeAnonymized, MergeQueue stretchMatrix) {
+        final int idA = pair.getLeader(), idB = pair.getPartner();
+        m.set_trajectoryId(newTrajectories.size());
+        newTrajectories.add(m);
+
+        // update the status of a and b
+        newTrajectories.set(idA, null); toBeAnonymized.remove(idA);
+        newTrajectories.set(idB, null); toBeAnonymized.remove(idB);
+
+        // all relevant pairs are invalid, they will be skipped when polled
+        stretchMatrix.invalidate(idA);
+        stretchMatrix.invalidate(idB);
+        return m;
+    }
+}
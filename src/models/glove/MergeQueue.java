@@ -0,0 +1,259 @@
+package models.glove;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+// the min-queue of trajectory pairs used by the GLOVE and KLT merge loops
+// a pair becomes stale once one of its members has been merged, it is skipped when it reaches the top (lazy invalidation)
+// instead of scanning the whole queue after every merge
+// pairs are packed into primitive arrays: (leader, partner) encoded in one long plus a float, 12 bytes per pair
+public class MergeQueue {
+
+    private long[] pairs;       // leader << 32 | partner
+    private float[] values;     // the stretch effort of each pair
+    private int size;
+    private int ordered;        // [0, ordered) is a valid heap, the rest has been appended but not sifted yet
+
+    private final BitSet retired;   // trajectory ids that have been merged into others
+    private int[] pairCount;        // # of queued pairs per trajectory id
+    private long stale;             // upper bound of the queued pairs that are stale
+
+    public MergeQueue() {
+        pairs = new long[16];
+        values = new float[16];
+        size = 0;
+        ordered = 0;
+        retired = new BitSet();
+        pairCount = new int[16];
+        stale = 0;
+    }
+
+    public void add(final int leader, final int partner, final float value) {
+        ensureCapacity((long) size + 1);
+        pairs[size] = encode(leader, partner);
+        values[size] = value;
+        size++;
+        count(leader);
+        count(partner);
+    }
+
+    public void add(TrajectoryPair pair) {
+        add(pair.getLeader(), pair.getPartner(), pair.getValue());
+    }
+
+    // the pair with currently minimum stretch effort whose members are both alive, null if none
+    public TrajectoryPair poll() {
+        dropStale();
+        if (size == 0) {
+            return null;
+        }
+        TrajectoryPair pair = new TrajectoryPair(leaderOf(pairs[0]), partnerOf(pairs[0]), values[0]);
+        removeTop();
+        pairCount[pair.getLeader()]--;
+        pairCount[pair.getPartner()]--;
+        return pair;
+    }
+
+    // true if the next polled pair would come before the given one
+    boolean topBefore(final TrajectoryPair pair) {
+        dropStale();
+        return size > 0 && less(values[0], pairs[0], pair.getValue(), encode(pair.getLeader(), pair.getPartner()));
+    }
+
+    public boolean isEmpty() {
+        dropStale();
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isRetired(int id) {
+        return retired.get(id);
+    }
+
+    // all queued pairs involving this trajectory are invalid from now on
+    public void invalidate(int id) {
+        if (!retired.get(id)) {
+            retired.set(id);
+            if (id < pairCount.length) {
+                stale += pairCount[id];
+            }
+        }
+        // rebuild once the stale pairs dominate, to keep the memory proportional to the valid pairs
+        if (stale > size / 2 && size > 1024) {
+            compact();
+        }
+    }
+
+    public void clear() {
+        pairs = new long[16];
+        values = new float[16];
+        size = ordered = 0;
+        Arrays.fill(pairCount, 0);
+        stale = 0;
+        retired.clear();
+    }
+
+    /* bulk loading: reserve slots, fill them concurrently with put(), then seal() them before any other call */
+    int reserve(final long count) {
+        ensureCapacity(size + count);
+        int first = size;
+        size += (int) count;
+        return first;
+    }
+
+    void put(final int slot, final int leader, final int partner, final float value) {
+        pairs[slot] = encode(leader, partner);
+        values[slot] = value;
+    }
+
+    void seal(final int first) {
+        for (int i = first; i < size; i++) {
+            count(leaderOf(pairs[i]));
+            count(partnerOf(pairs[i]));
+        }
+    }
+
+    // the backing arrays, [0, size()) holds the queued pairs in no particular order
+    long[] pairs() {
+        return pairs;
+    }
+
+    float[] values() {
+        return values;
+    }
+
+    private void dropStale() {
+        restoreHeap();
+        while (size > 0 && (retired.get(leaderOf(pairs[0])) || retired.get(partnerOf(pairs[0])))) {
+            pairCount[leaderOf(pairs[0])]--;
+            pairCount[partnerOf(pairs[0])]--;
+            removeTop();
+            stale--;
+        }
+    }
+
+    private void compact() {
+        Arrays.fill(pairCount, 0);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int leader = leaderOf(pairs[i]), partner = partnerOf(pairs[i]);
+            if (!retired.get(leader) && !retired.get(partner)) {
+                pairs[kept] = pairs[i];
+                values[kept] = values[i];
+                kept++;
+                pairCount[leader]++;
+                pairCount[partner]++;
+            }
+        }
+        size = kept;
+        ordered = 0;    // heapify in linear time when polled next
+        stale = 0;
+        if (pairs.length > 2L * size + 16) {    // give the memory back
+            pairs = Arrays.copyOf(pairs, size + 16);
+            values = Arrays.copyOf(values, size + 16);
+        }
+    }
+
+    // make the whole array a heap again, either sift up the few appended pairs or heapify from scratch
+    private void restoreHeap() {
+        if (ordered == size) {
+            return;
+        }
+        if (size - ordered > ordered / 8) {
+            for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        } else {
+            for (int i = ordered; i < size; i++) {
+                siftUp(i);
+            }
+        }
+        ordered = size;
+    }
+
+    private void removeTop() {
+        size--;
+        ordered--;
+        if (size > 0) {
+            pairs[0] = pairs[size];
+            values[0] = values[size];
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        long pair = pairs[i];
+        float value = values[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(value, pair, values[parent], pairs[parent])) {
+                break;
+            }
+            pairs[i] = pairs[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        pairs[i] = pair;
+        values[i] = value;
+    }
+
+    private void siftDown(int i) {
+        long pair = pairs[i];
+        float value = values[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && less(values[right], pairs[right], values[child], pairs[child])) {
+                child = right;
+            }
+            if (!less(values[child], pairs[child], value, pair)) {
+                break;
+            }
+            pairs[i] = pairs[child];
+            values[i] = values[child];
+            i = child;
+        }
+        pairs[i] = pair;
+        values[i] = value;
+    }
+
+    // the same ordering as TrajectoryPair.compareTo, ids are non-negative so the packed long keeps (leader, partner) order
+    private static boolean less(float v1, long p1, float v2, long p2) {
+        int cmp = Float.compare(v1, v2);
+        return cmp < 0 || (cmp == 0 && p1 < p2);
+    }
+
+    private void ensureCapacity(final long capacity) {
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many trajectory pairs for the merge queue: " + capacity);
+        }
+        if (capacity > pairs.length) {
+            int length = (int) Math.min(Math.max(capacity, pairs.length + (pairs.length >> 1)), Integer.MAX_VALUE - 8);
+            pairs = Arrays.copyOf(pairs, length);
+            values = Arrays.copyOf(values, length);
+        }
+    }
+
+    private void count(int id) {
+        if (id >= pairCount.length) {
+            pairCount = Arrays.copyOf(pairCount, Math.max(id + 1, pairCount.length * 2));
+        }
+        pairCount[id]++;
+    }
+
+    private static long encode(int leader, int partner) {
+        return ((long) leader << 32) | (partner & 0xffffffffL);
+    }
+
+    private static int leaderOf(long pair) {
+        return (int) (pair >>> 32);
+    }
+
+    private static int partnerOf(long pair) {
+        return (int) pair;
+    }
+}
@@ -0,0 +1,131 @@
+package models.glove;
+
+import shared.Parallel;
+import spatial.ComplexPoint;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static models.glove.Formula.MAX_MINUTE;
+import static models.glove.Formula.Omega_Sigma_Tau;
+
+// exact search of the point at minimum merging cost (formula 1) within a sequence of points
+// the candidates are visited outward in time order, starting from a binary-search position,
+// and the scan stops once the temporal part of the cost alone exceeds the best cost found so far
+public class NearestCost {
+
+    // float rounding in formula 1 must never push a real cost below its lower bound
+    private static final double SLACK = 1 - 1e-5;
+    private static final int BLOCK = 16;    // # of consecutive candidates evaluated by one computeCosts call
+    private static final int CHUNK = 256;   // # of points searched by one task of argmins
+
+    private final PointBuffer buffer;   // the points in time order
+    private final int[] order;      // point indices sorted by time, null if the points are already sorted
+    private final long[] times;     // the sorted exact times
+    private final float[] costs = new float[BLOCK];     // the buffer of the sequential searches
+
+    public NearestCost(final List<ComplexPoint> points) {
+        final int len = points.size();
+        long[] t = new long[len];
+        boolean sorted = true;
+        for (int i = 0; i < len; i++) {
+            t[i] = points.get(i).get_exactTime();
+            sorted &= (i == 0 || t[i - 1] <= t[i]);
+        }
+        if (sorted) {
+            order = null;
+        } else {
+            Integer[] idx = new Integer[len];
+            Arrays.setAll(idx, i -> i);
+            Arrays.sort(idx, Comparator.comparingLong(i -> t[i]));
+            order = new int[len];
+            for (int i = 0; i < len; i++) {
+                order[i] = idx[i];
+            }
+        }
+        buffer = new PointBuffer(points, order);
+        times = buffer.time;
+    }
+
+    // the index of the point at minimum cost with p, the first one among ties (as a linear scan would return)
+    public int argmin(final ComplexPoint p, final int nP, final int nQ) {
+        return (int) search(p, nP, nQ, costs);
+    }
+
+    // argmin of each point, the searches are independent and run in parallel, each task with its own buffer
+    public int[] argmins(final List<ComplexPoint> points, final int nP, final int nQ) {
+        final int len = points.size();
+        int[] indices = new int[len];
+        Parallel.forEach(0, (len + CHUNK - 1) / CHUNK, c -> {
+            float[] buffer = new float[BLOCK];
+            for (int i = c * CHUNK, to = Math.min(i + CHUNK, len); i < to; i++) {
+                indices[i] = (int) search(points.get(i), nP, nQ, buffer);
+            }
+        });
+        return indices;
+    }
+
+    // the minimum cost between p and the points
+    public float minCost(final ComplexPoint p, final int nP, final int nQ) {
+        return Float.intBitsToFloat((int) (search(p, nP, nQ, costs) >>> 32));
+    }
+
+    // (cost bits << 32 | index) of the best point
+    private long search(final ComplexPoint p, final int nP, final int nQ, float[] costs) {
+        final long tp = p.get_exactTime();
+        // the temporal stretch between p and a point dt seconds away is at least weight * dt / 60 minutes
+        final double factor = SLACK * Math.min(nP, nQ) / (double) (nP + nQ) / 60.0 / MAX_MINUTE;
+
+        int right = lowerBound(tp);
+        int left = right - 1;
+        float best = Float.MAX_VALUE;
+        int bestIdx = -1;
+        while (left >= 0 || right < times.length) {
+            // a block of candidates on the side of the nearer next point
+            int from, to;
+            if (right >= times.length || (left >= 0 && tp - times[left] <= times[right] - tp)) {
+                double bound = Omega_Sigma_Tau * Math.min((tp - times[left]) * factor, SLACK);
+                if (bound > best) {     // the nearer one of both sides, so nothing further can be better
+                    break;
+                }
+                from = Math.max(left - BLOCK + 1, 0);
+                to = left + 1;
+                left = from - 1;
+            } else {
+                double bound = Omega_Sigma_Tau * Math.min((times[right] - tp) * factor, SLACK);
+                if (bound > best) {
+                    break;
+                }
+                from = right;
+                to = Math.min(right + BLOCK, times.length);
+                right = to;
+            }
+            // the farther ones of a block may exceed the bound, evaluating them anyway never changes the minimum
+            Formula.computeCosts(p, nP, nQ, buffer, from, to, costs);
+            for (int pos = from; pos < to; pos++) {
+                float cost = costs[pos - from];
+                int idx = order == null ? pos : order[pos];
+                if (cost < best || (cost == best && idx < bestIdx)) {
+                    best = cost;
+                    bestIdx = idx;
+                }
+            }
+        }
+        return ((long) Float.floatToRawIntBits(best) << 32) | (bestIdx & 0xffffffffL);
+    }
+
+    // the first position whose time is no earlier than t
+    private int lowerBound(final long t) {
+        int lo = 0, hi = times.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,33 @@
+package models.glove;
+
+import spatial.ComplexPoint;
+
+import java.util.List;
+
+// struct-of-arrays copy of a point sequence, the operand layout of the block cost loop in Formula.computeCosts
+public class PointBuffer {
+    final int length;
+    final float[] lng, lat;
+    final float[] looseLng, looseLat;
+    final long[] time, looseTime;
+
+    // order[i] is the index in points of the i-th buffered point, null keeps the original order
+    public PointBuffer(final List<ComplexPoint> points, final int[] order) {
+        length = points.size();
+        lng = new float[length];
+        lat = new float[length];
+        looseLng = new float[length];
+        looseLat = new float[length];
+        time = new long[length];
+        looseTime = new long[length];
+        for (int i = 0; i < length; i++) {
+            ComplexPoint p = points.get(order == null ? i : order[i]);
+            lng[i] = p.getLongitude();
+            lat[i] = p.getLatitude();
+            looseLng[i] = p.get_looseLongitude();
+            looseLat[i] = p.get_looseLatitude();
+            time[i] = p.get_exactTime();
+            looseTime[i] = p.get_looseTime();
+        }
+    }
+}
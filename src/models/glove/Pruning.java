@@ -0,0 +1,122 @@
+package models.glove;
+
+import shared.Parallel;
+import spatial.Features;
+import spatial.Trajectory;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import static models.glove.Formula.MAX_MINUTE;
+import static models.glove.Formula.MAX_SPACE;
+import static models.glove.Formula.Omega_Sigma_Tau;
+
+// candidate-pair pruning for the stretch matrix:
+// a cheap lower bound of formula 10 is derived from the bounding box and the time span of each trajectory,
+// only the partners with the smallest bounds get their exact stretch effort computed
+public class Pruning {
+
+    public static int partners = 0;     // # of candidate partners kept per trajectory, 0 keeps all pairs
+
+    private Bound[] bounds;     // indexed by trajectory id
+
+    private Pruning(final int capacity) {
+        bounds = new Bound[capacity];
+    }
+
+    // null if the pruning is disabled, or there are too few trajectories to prune anything
+    public static Pruning create(final Vector<Trajectory> trajectories, final int total_trj) {
+        if (partners <= 0 || partners >= total_trj - 1) {
+            return null;
+        }
+        Pruning pruning = new Pruning(2 * total_trj);    // merged trajectories get new ids
+        Parallel.forEach(0, total_trj, i -> pruning.bounds[i] = new Bound(trajectories.get(i)));
+        return pruning;
+    }
+
+    // called for every newly merged trajectory before it is paired with others
+    public void register(final Trajectory trj) {
+        int id = trj.get_trajectoryId();
+        if (id >= bounds.length) {
+            bounds = Arrays.copyOf(bounds, Math.max(id + 1, bounds.length * 2));
+        }
+        bounds[id] = new Bound(trj);
+    }
+
+    // the (at most) partners candidates having the smallest lower bound with trj, in ascending order of ids
+    public int[] select(final Trajectory trj, final int[] candidates) {
+        final int self = trj.get_trajectoryId();
+        final Bound b = bounds[self];
+        long[] keys = new long[candidates.length];
+        int len = 0;
+        for (int id : candidates) {
+            if (id != self) {
+                float lb = lowerBound(b, bounds[id]);   // non-negative, so its bits keep the ordering
+                keys[len++] = ((long) Float.floatToIntBits(lb) << 32) | id;
+            }
+        }
+        int num = Math.min(partners, len);
+        if (num < len) {
+            selectSmallest(keys, 0, len - 1, num);
+        }
+
+        int[] selected = new int[num];
+        for (int i = 0; i < num; i++) {
+            selected[i] = (int) keys[i];
+        }
+        Arrays.sort(selected);
+        return selected;
+    }
+
+    // every point pair (a, b) satisfies |a.x - b.x| >= the gap between the two x-ranges (the same for the others),
+    // and both weights of formula 2 and 3 are no less than min(nA, nB) / (nA + nB)
+    private static float lowerBound(final Bound bA, final Bound bB) {
+        final Features a = bA.features, b = bB.features;
+        double weight = Math.min(bA.num, bB.num) / (double) (bA.num + bB.num);
+        double space = weight * (gap(a.minLng, a.maxLng, b.minLng, b.maxLng) + gap(a.minLat, a.maxLat, b.minLat, b.maxLat)
+                + gap(a.minLooseLng, a.maxLooseLng, b.minLooseLng, b.maxLooseLng)
+                + gap(a.minLooseLat, a.maxLooseLat, b.minLooseLat, b.maxLooseLat));
+        double time = weight * (gap(a.minTime, a.maxTime, b.minTime, b.maxTime)
+                + gap(a.minLooseTime, a.maxLooseTime, b.minLooseTime, b.maxLooseTime)) / 60.0;    // minute
+        return (float) (Omega_Sigma_Tau * Math.min(space / MAX_SPACE, 1) + Omega_Sigma_Tau * Math.min(time / MAX_MINUTE, 1));
+    }
+
+    private static double gap(double minA, double maxA, double minB, double maxB) {
+        return Math.max(0, Math.max(minB - maxA, minA - maxB));
+    }
+
+    // partially sort keys[lo..hi] so that the num smallest ones come first
+    private static void selectSmallest(long[] keys, int lo, int hi, final int num) {
+        while (lo < hi) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    long tmp = keys[i];
+                    keys[i++] = keys[j];
+                    keys[j--] = tmp;
+                }
+            }
+            if (num - 1 <= j) {
+                hi = j;
+            } else if (num - 1 >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    // the bounding box (of both exact and loose coordinates) and the time span of one trajectory
+    private static final class Bound {
+        final int num;     // # of merged trajectories
+        final Features features;
+
+        Bound(final Trajectory trj) {
+            num = trj.isMerged() ? trj.get_mergedNum() : 1;
+            features = trj.get_features();
+        }
+    }
+}
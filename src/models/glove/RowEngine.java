@@ -0,0 +1,189 @@
+package models.glove;
+
+import shared.Parallel;
+import shared.Utils;
+import spatial.Trajectory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.Vector;
+import java.util.function.BinaryOperator;
+
+// the merge engine with O(n) state instead of the O(n^2) queue: every trajectory keeps only its best few partners
+// among the older trajectories (a row of the lower triangle), and the global minimum is the best of the row minima
+// a row never gets new partners (newer trajectories own their rows), so its cached best ones stay exact
+// until all of them are merged away, only then the row is computed again
+// it merges the same pairs in the same order as the queue, the candidate pruning is not used
+public class RowEngine {
+
+    public static int cached = 8;   // # of best partners kept per row, see row_partners
+
+    private final Vector<Trajectory> trajectories;
+    private final int originals;        // ids below are the input trajectories, whose pairs are ordered (smaller, larger)
+    private final BitSet member;        // the ids in toBeAnonymized
+    private final BitSet hasRow;        // the ids paired with the older members when they joined
+    private int[][] bestIds;            // per row, the cached best partners in ascending order of their pairs
+    private float[][] bestValues;
+    private boolean[] complete;         // the cached partners were the whole row
+
+    private RowEngine(final Vector<Trajectory> trajectories, final int trj_num) {
+        this.trajectories = trajectories;
+        this.originals = trj_num;
+        member = new BitSet(2 * trj_num);
+        hasRow = new BitSet(2 * trj_num);
+        bestIds = new int[2 * trj_num][];
+        bestValues = new float[2 * trj_num][];
+        complete = new boolean[2 * trj_num];
+    }
+
+    public static int run(Vector<Trajectory> newTrajectories, final int trj_num, final int k_anonymity, Set<Integer> toBeAnonymized,
+                          final BinaryOperator<Trajectory> merger, final boolean drain) {
+        RowEngine engine = new RowEngine(newTrajectories, trj_num);
+        for (int id : toBeAnonymized) {
+            engine.member.set(id);
+            engine.hasRow.set(id);
+        }
+
+        System.out.print("[PROGRESS] Computing the best partners of each trajectory: ");
+        long startTimer = System.currentTimeMillis();
+        Parallel.forEach(0, trj_num, engine::computeRow);
+        System.out.println("100%");
+        long timecost = System.currentTimeMillis() - startTimer;
+        System.out.printf("[TIME-COST] for computing the best %d partners per trajectory with %d threads: %.3f s, %.3f min\n\n",
+                cached, Parallel.getThreads(), timecost / 1000.0, timecost / (1000.0 * 60));
+
+        int k = k_anonymity;
+        while (drain ? !toBeAnonymized.isEmpty() : toBeAnonymized.size() >= k) {
+            int row = engine.minRow();
+            if (row < 0) {  // no pair left
+                break;
+            }
+            // the same orientation as the queue, merging is not symmetric for trajectories of equal length
+            final int idA = row < trj_num ? engine.bestIds[row][0] : row;
+            final int idB = row < trj_num ? row : engine.bestIds[row][0];
+
+            // a & b is going to be merged
+            Trajectory m = merger.apply(newTrajectories.get(idA), newTrajectories.get(idB));
+            m.set_trajectoryId(newTrajectories.size());
+            newTrajectories.add(m);
+            engine.grow(m.get_trajectoryId());
+
+            // update the status of a and b
+            newTrajectories.set(idA, null); toBeAnonymized.remove(idA); engine.member.clear(idA);
+            newTrajectories.set(idB, null); toBeAnonymized.remove(idB); engine.member.clear(idB);
+
+            // the same admission rule as Glove.updateMatrix
+            if (m.get_K() < k) {
+                toBeAnonymized.add(m.get_trajectoryId());
+                engine.member.set(m.get_trajectoryId());
+                if (toBeAnonymized.size() >= k) {
+                    engine.hasRow.set(m.get_trajectoryId());
+                    engine.computeRow(m.get_trajectoryId());
+                } else {
+                    k--;
+                }
+            }
+            Utils.showProgress(trj_num - toBeAnonymized.size(), trj_num, "glove-merge");
+        }
+        return k;
+    }
+
+    // the row whose best alive partner forms the minimum pair, -1 if none
+    // rows are cleaned first: merged partners are dropped, exhausted rows computed again
+    private int minRow() {
+        int[] rows = hasRow.stream().filter(member::get).toArray();
+        BitSet exhausted = new BitSet();
+        for (int x : rows) {
+            if (!dropMerged(x) && !complete[x]) {
+                exhausted.set(x);
+            }
+        }
+        int[] again = exhausted.stream().toArray();
+        if (again.length > 1) {
+            Parallel.forEach(0, again.length, i -> computeRow(again[i]));
+        } else if (again.length == 1) {
+            computeRow(again[0]);   // the row itself is computed in parallel
+        }
+
+        int best = -1;
+        for (int x : rows) {
+            if (bestIds[x].length > 0 && (best < 0 || before(x, bestValues[x][0], bestIds[x][0], best, bestValues[best][0], bestIds[best][0]))) {
+                best = x;
+            }
+        }
+        return best;
+    }
+
+    // drop the cached partners that are no longer members, false if none is left
+    private boolean dropMerged(final int x) {
+        int[] ids = bestIds[x];
+        int kept = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (member.get(ids[i])) {
+                ids[kept] = ids[i];
+                bestValues[x][kept] = bestValues[x][i];
+                kept++;
+            }
+        }
+        if (kept < ids.length) {
+            bestIds[x] = Arrays.copyOf(ids, kept);
+            bestValues[x] = Arrays.copyOf(bestValues[x], kept);
+        }
+        return kept > 0;
+    }
+
+    // the best partners of x among the older members
+    private void computeRow(final int x) {
+        int[] ids = member.stream().filter(y -> y < x).toArray();
+        Trajectory trj = trajectories.get(x);
+        float[] values = new float[ids.length];
+        if (x < originals) {    // the initial matrix pairs (smaller, larger)
+            Parallel.forEach(0, ids.length, i -> values[i] = Formula.stretchEffort(trajectories.get(ids[i]), trj));
+        } else {                // a merged trajectory leads the pairs of its row
+            Parallel.forEach(0, ids.length, i -> values[i] = Formula.stretchEffort(trj, trajectories.get(ids[i])));
+        }
+
+        // keep the best ones by insertion, the row is scanned once
+        final int num = Math.min(cached, ids.length);
+        int[] topIds = new int[num];
+        float[] topValues = new float[num];
+        int len = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (len == num && !before(x, values[i], ids[i], x, topValues[len - 1], topIds[len - 1])) {
+                continue;
+            }
+            int pos = len < num ? len++ : len - 1;
+            while (pos > 0 && before(x, values[i], ids[i], x, topValues[pos - 1], topIds[pos - 1])) {
+                topIds[pos] = topIds[pos - 1];
+                topValues[pos] = topValues[pos - 1];
+                pos--;
+            }
+            topIds[pos] = ids[i];
+            topValues[pos] = values[i];
+        }
+        bestIds[x] = topIds;
+        bestValues[x] = topValues;
+        complete[x] = num == ids.length;
+    }
+
+    // the queue ordering of pair (x, y) against pair (u, v), where y < x and v < u
+    private boolean before(final int x, final float value1, final int y, final int u, final float value2, final int v) {
+        int cmp = Float.compare(value1, value2);
+        if (cmp != 0) {
+            return cmp < 0;
+        }
+        long p1 = x < originals ? ((long) y << 32) | x : ((long) x << 32) | y;
+        long p2 = u < originals ? ((long) v << 32) | u : ((long) u << 32) | v;
+        return p1 < p2;
+    }
+
+    private void grow(final int id) {
+        if (id >= bestIds.length) {
+            int length = Math.max(id + 1, bestIds.length * 2);
+            bestIds = Arrays.copyOf(bestIds, length);
+            bestValues = Arrays.copyOf(bestValues, length);
+            complete = Arrays.copyOf(complete, length);
+        }
+    }
+}
@@ -51,8 +51,15 @@ public class TrajectoryPair implements Comparable {
     @Override
     public int compareTo(Object obj) {
         if (obj instanceof TrajectoryPair a) {
-            return Double.compare(this.value, a.value);      // if this.sim > a.sim, return 1
+            int cmp = Double.compare(this.value, a.value);      // if this.sim > a.sim, return 1
             // it is ascending ordering
+            if (cmp == 0) {     // break ties by ids, so that the merging order doesn't depend on the queue layout
+                cmp = Integer.compare(this.leaderId, a.leaderId);
+                if (cmp == 0) {
+                    cmp = Integer.compare(this.partnerId, a.partnerId);
+                }
+            }
+            return cmp;
         }
 
         throw new IllegalArgumentException("Error in TrajectoryPair.compareTo.");
@@ -1,11 +1,12 @@
 package models.klt;
 
-import models.glove.Formula;
+import models.glove.Merge;
 import spatial.ComplexPoint;
 import spatial.Grid;
 import spatial.Trajectory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -22,13 +23,13 @@ public class KLTMerge {
         if (a.get_length() > b.get_length()) {
             longer = a.get_pointSeq();
             shorter = b.get_pointSeq();
-            nL = a.isMerged() ? a.get_mergedIds().size() : 1;
-            nS = b.isMerged() ? b.get_mergedIds().size() : 1;
+            nL = a.isMerged() ? a.get_mergedNum() : 1;
+            nS = b.isMerged() ? b.get_mergedNum() : 1;
         } else {
             shorter = a.get_pointSeq();
             longer = b.get_pointSeq();
-            nS = a.isMerged() ? a.get_mergedIds().size() : 1;
-            nL = b.isMerged() ? b.get_mergedIds().size() : 1;
+            nS = a.isMerged() ? a.get_mergedNum() : 1;
+            nL = b.isMerged() ? b.get_mergedNum() : 1;
         }
 
         ComplexPoint[] once = mergeOnce(longer, shorter, nL, nS, grid, l_diversity, t_closeness, poiDistribution);
@@ -60,45 +61,16 @@ public class KLTMerge {
                                                  final int l_diversity, final float t_closeness, final double[] poiDistribution) {
 
         ComplexPoint[] array = mergeOnce(unmerged, merged, nS, nL, grid, l_diversity, t_closeness, poiDistribution);
-        for (int i = 0, idx = 0; i < array.length; i++, idx++) {
-            if (array[i] != null) {
-                merged.set(idx, array[i]);
-            } else if (merged.get(i) == null) { // no new data, and it is originally null, remove it
-                merged.remove(i);
-                idx--;  // the merged is shorter than array now
-            }
-        }
-        return merged;
+        return Merge.replaceMerged(array, merged);
     }
 
     private static ComplexPoint[] mergeOnce(final List<ComplexPoint> longer, final List<ComplexPoint> shorter,
                                             final int nL, final int nS,
                                             final Grid grid, final int l_diversity, final float t_closeness,
                                             final double[] poiDistribution) {
-        //把长的 merge into 短的，所以合出来的结果一定是短的那条路径的长度
-        int shortLen = shorter.size();
-        ComplexPoint[] array = new ComplexPoint[shortLen];
-        for (ComplexPoint pl : longer) {
-            double minCost = Double.MAX_VALUE;
-            int minIdx = -1;
-            //长的list的一个点去和短的轨迹的所有点比较代价
-            // compare every point in longer list with the shorter one
-            for (int i = 0; i < shortLen; i++) {
-//                double cost = KLTFormula.computeCost(pl, shorter.get(i), nL, nS, grid, MAX_GridNum);
-                double cost = Formula.computeCost(pl, shorter.get(i), nL, nS);
-                if (cost < minCost) {
-                    minCost = cost;
-                    minIdx = i;
-                }
-            }
-            // if it has been merged, merge again
-            if (array[minIdx] == null) {
-                array[minIdx] = mergePoint(shorter.get(minIdx), pl, grid, l_diversity, t_closeness, poiDistribution);
-            } else {
-                array[minIdx] = mergePoint(array[minIdx], pl, grid, l_diversity, t_closeness, poiDistribution);
-            }
-        }
-        return array;
+        // the same matching as GLOVE, a merged point is generalized to a privacy-safe rectangle of cells
+        return Merge.mergeOnce(longer, shorter, nL, nS,
+                (p, q) -> mergePoint(p, q, grid, l_diversity, t_closeness, poiDistribution));
     }
 
     // merge a and b to a new point
@@ -111,11 +83,106 @@ public class KLTMerge {
         float deltaLat = Math.max(a.get_looseLatitude(), b.get_looseLatitude()) - lat;
 
         /* to satisfy l-diversity */
-        Set<Integer> mergedGrids = new HashSet<>();
         int gid = (int) grid.get_gridId_by_lnglat(lng, lat);    // should >= 0
         int gid_Max = (int) grid.get_gridId_by_lnglat(lng + deltaLng, lat + deltaLat);
-        int[] row_col = mergeTwoGrids(gid, gid_Max, mergedGrids);
+        final Scratch scratch = Scratch.get();
+        int[] row_col = mergeTwoGrids(gid, gid_Max, scratch.rect);
+
+        // the expansion only depends on the starting rectangle
+        int[] expanded = rectangles == null ? null : rectangles.get(row_col, l_diversity, t_closeness);
+        if (expanded == null) {
+            System.arraycopy(row_col, 0, scratch.start, 0, 4);
+            if (!withinGrid(row_col)) {
+                expandByCellSet(row_col, grid, l_diversity, t_closeness, poiDistribution);
+            } else if (grid.hasCategoryTables()) {
+                expandByTables(row_col, grid, l_diversity, t_closeness, poiDistribution, scratch);
+            } else {
+                expandByCells(row_col, grid, l_diversity, t_closeness, poiDistribution, scratch);
+            }
+            if (rectangles != null) {
+                rectangles.put(scratch.start, l_diversity, t_closeness, row_col);
+            }
+            expanded = row_col;
+        }
+        return createNewPoint(a, b, expanded, grid);
+    }
+
+    // the working memory of mergePoint, one per thread, so that a merged point costs no garbage but itself
+    private static final class Scratch {
+        private static final ThreadLocal<Scratch> local = ThreadLocal.withInitial(Scratch::new);
+
+        final int[] rect = new int[4];      // the rectangle being expanded
+        final int[] start = new int[4];     // the rectangle before the expansion
+        final int[] probe = new int[4];     // a rectangle tried by the search
+        int[] totals = new int[0];          // the # of POIs per category within the rectangle
+
+        static Scratch get() {
+            Scratch scratch = local.get();
+            if (scratch.totals.length != TotalCategoryNum) {    // the categories of another input
+                scratch.totals = new int[TotalCategoryNum];
+            }
+            return scratch;
+        }
+    }
+
+    // look up the cells one by one, only the new column or row is visited after each growth
+    private static void expandByCells(int[] row_col, final Grid grid, final int l_diversity, final float t_closeness,
+                                      final double[] poiDistribution, final Scratch scratch) {
+        final int[] totalCategory = scratch.totals;
+        Arrays.fill(totalCategory, 0);
+        int diversity = addCells(grid, totalCategory, 0, row_col[ROW_MIN], row_col[ROW_MAX], row_col[COL_MIN], row_col[COL_MAX]);
+
+        while (diversity < l_diversity) {
+            int side = growRectangle(row_col);
+            if (side < 0) {
+                System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+                break;
+            }
+            diversity = addStrip(grid, totalCategory, diversity, row_col, side);
+        }
+
+        /* to satisfy t-closeness */
+        double closeness = computeKLdivergence(totalCategory, poiDistribution);
+        while (closeness > t_closeness) {
+            int side = growRectangle(row_col);
+            if (side < 0) {
+                System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+                break;
+            }
+            diversity = addStrip(grid, totalCategory, diversity, row_col, side);
+            closeness = computeKLdivergence(totalCategory, poiDistribution);
+        }
+    }
+
+    // add the categories of the cells in the rectangle, the new diversity is returned
+    private static int addCells(final Grid grid, int[] totalCategory, int diversity,
+                                final int rowMin, final int rowMax, final int colMin, final int colMax) {
+        for (int row = rowMin; row <= rowMax; row++) {
+            for (int col = colMin; col <= colMax; col++) {
+                diversity = updateDiversity(grid, totalCategory, diversity, row * allColNum + col);
+            }
+        }
+        return diversity;
+    }
 
+    // the column or row just added on this side of the rectangle
+    private static int addStrip(final Grid grid, int[] totalCategory, final int diversity, final int[] row_col, final int side) {
+        if (side == COL_MIN || side == COL_MAX) {
+            return addCells(grid, totalCategory, diversity, row_col[ROW_MIN], row_col[ROW_MAX], row_col[side], row_col[side]);
+        }
+        return addCells(grid, totalCategory, diversity, row_col[side], row_col[side], row_col[COL_MIN], row_col[COL_MAX]);
+    }
+
+    // a rectangle reaching out of the grid, whose cell ids may alias (column -1 wraps to the previous row),
+    // so the cells are collected in a set to count each of them once
+    private static void expandByCellSet(int[] row_col, final Grid grid, final int l_diversity, final float t_closeness,
+                                        final double[] poiDistribution) {
+        Set<Integer> mergedGrids = new HashSet<>();
+        for (int row = row_col[ROW_MIN]; row <= row_col[ROW_MAX]; row++) {
+            for (int col = row_col[COL_MIN]; col <= row_col[COL_MAX]; col++) {
+                mergedGrids.add(row * allColNum + col);
+            }
+        }
         int[] totalCategory = new int[TotalCategoryNum];
         int diversity = 0;
         for (int g : mergedGrids) {
@@ -123,7 +190,7 @@ public class KLTMerge {
         }
 
         while (diversity < l_diversity) {
-            int[] added = addGrids(mergedGrids, row_col, grid);
+            int[] added = addGrids(mergedGrids, row_col);
             if (added == null) {
                 System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
                 break;
@@ -134,11 +201,10 @@ public class KLTMerge {
         }
 
         /* to satisfy t-closeness */
-        double[] curDistribution = getDistribution(totalCategory);
-        double closeness = computeKLdivergence(curDistribution, poiDistribution);
+        double closeness = computeKLdivergence(totalCategory, poiDistribution);
         while (closeness > t_closeness) {
 
-            int[] added = addGrids(mergedGrids, row_col, grid);
+            int[] added = addGrids(mergedGrids, row_col);
             if (added == null) {
                 System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
                 break;
@@ -146,13 +212,133 @@ public class KLTMerge {
             for (int g : added) {
                 diversity = updateDiversity(grid, totalCategory, diversity, g);
             }
-            curDistribution = getDistribution(totalCategory);
-            closeness = computeKLdivergence(curDistribution, poiDistribution);
+            closeness = computeKLdivergence(totalCategory, poiDistribution);
+        }
+    }
+
+    // the same expansion as above, but the categories of the whole rectangle are counted by the summed-area tables
+    private static void expandByTables(int[] row_col, final Grid grid, final int l_diversity, final float t_closeness,
+                                       final double[] poiDistribution, final Scratch scratch) {
+        if (expansion.equalsIgnoreCase("search")) {
+            searchByTables(row_col, grid, l_diversity, t_closeness, poiDistribution, scratch);
+            return;
+        }
+        final int[] totalCategory = scratch.totals;
+        countCategories(grid, row_col, totalCategory);
+        while (diversityOf(totalCategory) < l_diversity) {
+            if (growRectangle(row_col) < 0) {
+                System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+                break;
+            }
+            countCategories(grid, row_col, totalCategory);
+        }
+
+        double closeness = computeKLdivergence(totalCategory, poiDistribution);
+        while (closeness > t_closeness) {
+            if (growRectangle(row_col) < 0) {
+                System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+                break;
+            }
+            countCategories(grid, row_col, totalCategory);
+            closeness = computeKLdivergence(totalCategory, poiDistribution);
+        }
+    }
+
+    // the rectangle after s expansion steps is known in O(1), so the step count is searched instead of walked:
+    // doubling until the constraint holds, then bisecting back, O(log r) evaluations instead of O(r)
+    private static void searchByTables(int[] row_col, final Grid grid, final int l_diversity, final float t_closeness,
+                                       final double[] poiDistribution, final Scratch scratch) {
+        final int total = growthSteps(scratch.start);
+
+        // exact: a larger rectangle never loses a category
+        int step = searchStep(0, total, false, grid, l_diversity, t_closeness, poiDistribution, scratch);
+        if (step < 0) {
+            System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+            step = total;
+        }
+
+        // the divergence is not monotone in the rectangle, a step right after a failing one is taken
+        int closeStep = searchStep(step, total, true, grid, l_diversity, t_closeness, poiDistribution, scratch);
+        if (closeStep < 0) {
+            System.out.println("[ERROR] Cannot add new grids to satisfy l-diversity.");
+            closeStep = total;
+        }
+        rectangleAt(scratch.start, closeStep, row_col);
+    }
+
+    // a step in [from, to] passing the test, found by doubling from 'from' and then bisecting, -1 if even 'to' fails
+    // for a monotone test it is the first passing step, otherwise one whose previous step fails
+    private static int searchStep(final int from, final int to, final boolean closeness, final Grid grid,
+                                  final int l_diversity, final float t_closeness, final double[] poiDistribution,
+                                  final Scratch scratch) {
+        if (passes(from, closeness, grid, l_diversity, t_closeness, poiDistribution, scratch)) {
+            return from;
+        }
+        int lo = from, hi;      // lo always fails
+        for (long d = 1; ; d *= 2) {
+            hi = (int) Math.min(from + d, to);
+            if (passes(hi, closeness, grid, l_diversity, t_closeness, poiDistribution, scratch)) {
+                break;
+            }
+            if (hi == to) {
+                return -1;
+            }
+            lo = hi;
+        }
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (passes(mid, closeness, grid, l_diversity, t_closeness, poiDistribution, scratch)) {
+                hi = mid;
+            } else {
+                lo = mid;
+            }
         }
+        return hi;
+    }
+
+    // whether the rectangle after s steps satisfies t-closeness (closeness) or l-diversity (otherwise)
+    private static boolean passes(final int s, final boolean closeness, final Grid grid,
+                                  final int l_diversity, final float t_closeness, final double[] poiDistribution,
+                                  final Scratch scratch) {
+        countCategories(grid, rectangleAt(scratch.start, s, scratch.probe), scratch.totals);
+        return closeness ? computeKLdivergence(scratch.totals, poiDistribution) <= t_closeness
+                : diversityOf(scratch.totals) >= l_diversity;
+    }
+
+    // # of times growRectangle succeeds from the given rectangle
+    private static int growthSteps(final int[] start) {
+        return (allColNum - 1 - start[COL_MAX]) + start[COL_MIN] + start[ROW_MIN] + (allRowNum - 1 - start[ROW_MAX]);
+    }
 
-        return createNewPoint(a, b, row_col, grid);
+    // the rectangle after s calls of growRectangle on start: right, left, up and down until each border is reached
+    private static int[] rectangleAt(final int[] start, int s, int[] row_col) {
+        int right = Math.min(s, allColNum - 1 - start[COL_MAX]);
+        s -= right;
+        int left = Math.min(s, start[COL_MIN]);
+        s -= left;
+        int up = Math.min(s, start[ROW_MIN]);
+        s -= up;
+        int down = Math.min(s, allRowNum - 1 - start[ROW_MAX]);
+        row_col[ROW_MIN] = start[ROW_MIN] - up;
+        row_col[ROW_MAX] = start[ROW_MAX] + down;
+        row_col[COL_MIN] = start[COL_MIN] - left;
+        row_col[COL_MAX] = start[COL_MAX] + right;
+        return row_col;
+    }
+
+    private static void countCategories(final Grid grid, final int[] row_col, int[] totalCategory) {
+        grid.countCategories(row_col[ROW_MIN], row_col[ROW_MAX], row_col[COL_MIN], row_col[COL_MAX], totalCategory);
     }
 
+    private static int diversityOf(final int[] totalCategory) {
+        int diversity = 0;
+        for (int count : totalCategory) {
+            if (count > 0) {
+                diversity++;
+            }
+        }
+        return diversity;
+    }
     private static ComplexPoint createNewPoint(ComplexPoint a, ComplexPoint b, int[] row_col, Grid grid) {
 
         /* to satisfy 2-anonymity in terms of temporal dimension */
@@ -169,18 +355,7 @@ public class KLTMerge {
     }
 
     private static int updateDiversity(Grid grid, int[] totalCategory, int diversity, int targetGrid) {
-        Integer[] categories = grid.get_category_by_gridId(targetGrid);
-        if (categories != null) {
-            for (int i = 0; i < categories.length; i++) {
-                if (categories[i] > 0) {
-                    if (totalCategory[i] == 0) {
-                        diversity++;
-                    }
-                    totalCategory[i] += categories[i];
-                }
-            }
-        }
-        return diversity;
+        return diversity + grid.add_categories_by_gridId(targetGrid, totalCategory);
     }
 
     private static final int ROW_MIN = 0;
@@ -189,9 +364,11 @@ public class KLTMerge {
     private static final int COL_MAX = 3;
     static int allColNum = 0;
     static int allRowNum = 0;
+    public static String expansion = "linear";     // linear: one strip per step, search: doubling and bisection
+    static RectangleCache rectangles = null;       // null expands every merged point from scratch
 
-    private static int[] mergeTwoGrids(final int gidA, final int gidB, Set<Integer> mergedGrids) {
-        int[] row_col = new int[4];
+    // the rectangle of cells spanned by both grids, written into row_col
+    private static int[] mergeTwoGrids(final int gidA, final int gidB, int[] row_col) {
         row_col[ROW_MIN] = allRowNum;   // rowMinId
         row_col[ROW_MAX] = -1;                    // rowMaxId
         row_col[COL_MIN] = allColNum;   // colMinId
@@ -211,82 +388,78 @@ public class KLTMerge {
         row_col[ROW_MAX] = Math.max(row, row_col[ROW_MAX]);
         row_col[COL_MIN] = Math.min(col, row_col[COL_MIN]);
         row_col[COL_MAX] = Math.max(col, row_col[COL_MAX]);
-
-        for (row = row_col[ROW_MIN]; row <= row_col[ROW_MAX]; row++) {
-            for (col = row_col[COL_MIN]; col <= row_col[COL_MAX]; col++) {
-                int gid = row * allColNum + col;
-                mergedGrids.add(gid);
-            }
-        }
         return row_col;
     }
 
-    private static int[] addGrids(Set<Integer> grid_ids, int[] row_col, Grid grid) {
+    private static boolean withinGrid(final int[] row_col) {
+        return row_col[ROW_MIN] >= 0 && row_col[ROW_MAX] < allRowNum && row_col[COL_MIN] >= 0 && row_col[COL_MAX] < allColNum;
+    }
 
-        int[] gids = null;
-        int row_num = row_col[ROW_MAX] - row_col[ROW_MIN] + 1;
-        int col_num = row_col[COL_MAX] - row_col[COL_MIN] + 1;
+    // extend the rectangle by one column or row, to the right, left, up or down in this order
+    // the side moved is returned (COL_MAX, COL_MIN, ROW_MIN or ROW_MAX), -1 if it already covers the whole grid
+    private static int growRectangle(int[] row_col) {
         if (row_col[COL_MAX] + 1 < allColNum) { // right
-            gids = new int[row_num];
-            int idx = 0;
-            for (int r = row_col[ROW_MIN]; r <= row_col[ROW_MAX]; r++) {
-                gids[idx++] = r * allColNum + row_col[COL_MAX] + 1;
-            }
             row_col[COL_MAX]++;
+            return COL_MAX;
         } else if (row_col[COL_MIN] - 1 >= 0) {   // left
-            gids = new int[row_num];
-            int idx = 0;
-            for (int r = row_col[ROW_MIN]; r <= row_col[ROW_MAX]; r++) {
-                gids[idx++] = r * allColNum + row_col[COL_MIN] - 1;
-            }
             row_col[COL_MIN]--;
+            return COL_MIN;
         } else if (row_col[ROW_MIN] - 1 >= 0) {    // up
-            gids = new int[col_num];
-            int idx = 0;
-            for (int c = row_col[COL_MIN]; c <= row_col[COL_MAX]; c++) {
-                gids[idx++] = (row_col[ROW_MIN] - 1) * allColNum + c;
-            }
             row_col[ROW_MIN]--;
+            return ROW_MIN;
         } else if (row_col[ROW_MAX] + 1 < allRowNum) {   // down
-            gids = new int[col_num];
-            int idx = 0;
-            for (int c = row_col[COL_MIN]; c <= row_col[COL_MAX]; c++) {
-                gids[idx++] = (row_col[ROW_MAX] + 1) * allColNum + c;
-            }
             row_col[ROW_MAX]++;
+            return ROW_MAX;
+        }
+        return -1;
+    }
+
+    private static int[] addGrids(Set<Integer> grid_ids, int[] row_col) {
+        int side = growRectangle(row_col);
+        if (side < 0) {
+            return null;
         }
 
-        if (gids != null) {
-            for (int gid : gids) {
-                grid_ids.add(gid);
+        // the cells of the new column or row
+        int[] gids;
+        if (side == COL_MIN || side == COL_MAX) {
+            int col = row_col[side];
+            gids = new int[row_col[ROW_MAX] - row_col[ROW_MIN] + 1];
+            for (int r = row_col[ROW_MIN], idx = 0; r <= row_col[ROW_MAX]; r++) {
+                gids[idx++] = r * allColNum + col;
+            }
+        } else {
+            int row = row_col[side];
+            gids = new int[row_col[COL_MAX] - row_col[COL_MIN] + 1];
+            for (int c = row_col[COL_MIN], idx = 0; c <= row_col[COL_MAX]; c++) {
+                gids[idx++] = row * allColNum + c;
             }
         }
+
+        for (int gid : gids) {
+            grid_ids.add(gid);
+        }
         return gids;
     }
 
-    private static double computeKLdivergence(double[] current, double[] global) {
+    // the KL divergence of the category distribution given by the counts from the global one,
+    // the distribution is computed on the fly, the same values as Grid.get_categoryDistribution in the same order
+    private static double computeKLdivergence(int[] totalCategory, double[] global) {
+        double sum = 0;
+        for (int cnt : totalCategory) {
+            sum += cnt;
+        }
         double KLd = 0, accretion;  // the incremental entropy
         float infinity = Float.MAX_VALUE;//无穷大
         //找出相对应poi类别的概率，如果找到了，就将accretion的值更新，并累加到相对熵上面；如果没找到，则增加了为无穷大
-        for (int i = 1, len = current.length; i < len; i++) { // !!! No category's id is 0
+        for (int i = 1, len = totalCategory.length; i < len; i++) { // !!! No category's id is 0
             accretion = infinity;
-            if (current[i] > 0 && global[i] > 0) {
-                accretion = current[i] * Math.log(current[i] / global[i]);
+            double current = totalCategory[i] / sum;
+            if (current > 0 && global[i] > 0) {
+                accretion = current * Math.log(current / global[i]);
             }
             KLd += accretion;
         }
         return KLd;
     }
-
-    static double[] getDistribution(int[] countArray) {
-        double sum = 0;
-        for (Integer cnt : countArray) {
-            sum += cnt;
-        }
-        double[] distribution = new double[countArray.length];
-        for (int i = 0; i < distribution.length; i++) {
-            distribution[i] = countArray[i] / sum;
-        }
-        return distribution;
-    }
 }
@@ -0,0 +1,105 @@
+package models.klt;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// memoized expansions of KLTMerge.mergePoint: the starting rectangle plus (l, t) -> the privacy-safe rectangle
+// merged points in dense areas start from the same few rectangles again and again
+// bounded and striped: a key picks one of SEGMENTS least-recently-used maps by its hash, each with its own lock,
+// so concurrent merges only contend when they hit the same segment
+public class RectangleCache {
+
+    public static int capacity = 65536;    // # of rectangles kept, 0 disables the cache
+    private static final int SEGMENTS = 16;     // a power of two
+
+    private final int size;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RectangleCache(final int size) {
+        this.size = size;
+        for (int i = 0; i < SEGMENTS; i++) {    // the capacity is shared out evenly
+            segments[i] = new Segment(size / SEGMENTS + (i < size % SEGMENTS ? 1 : 0));
+        }
+    }
+
+    // the expanded rectangle of this start, null if not cached
+    int[] get(final int[] start, final int l_diversity, final float t_closeness) {
+        Key key = new Key(start, l_diversity, t_closeness, false);
+        Segment segment = segmentOf(key);
+        int[] expanded;
+        synchronized (segment) {     // an access reorders the entries as well
+            expanded = segment.rectangles.get(key);
+        }
+        (expanded == null ? misses : hits).increment();
+        return expanded;
+    }
+
+    void put(final int[] start, final int l_diversity, final float t_closeness, final int[] expanded) {
+        Key key = new Key(start, l_diversity, t_closeness, true);
+        Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.rectangles.put(key, expanded.clone());
+        }
+    }
+
+    private Segment segmentOf(final Key key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    public void report() {
+        long hit = hits.sum(), total = hit + misses.sum();
+        int used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.rectangles.size();
+            }
+        }
+        System.out.printf("[REPORT] rectangle cache: %d hits out of %d lookups (%.2f%%), %d of %d entries used\n",
+                hit, total, total == 0 ? 0 : 100.0 * hit / total, used, size);
+    }
+
+    // one stripe, an access-ordered map evicting its least recently used entry, guarded by the segment
+    private static final class Segment {
+        final Map<Key, int[]> rectangles;
+
+        Segment(final int limit) {
+            rectangles = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+                    return size() > limit;
+                }
+            };
+        }
+    }
+
+    private static final class Key {
+        final int[] rectangle;
+        final int l_diversity;
+        final int t_closeness;     // the float bits
+
+        // a lookup key may share the array of the caller, a stored key owns a copy
+        Key(final int[] start, final int l, final float t, final boolean copy) {
+            rectangle = copy ? start.clone() : start;
+            l_diversity = l;
+            t_closeness = Float.floatToIntBits(t);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key k) {
+                return l_diversity == k.l_diversity && t_closeness == k.t_closeness && Arrays.equals(rectangle, k.rectangle);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(rectangle) + l_diversity) + t_closeness;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import spatial.ComplexPoint;
 import spatial.Trajectory;
 import models.mixzone.graph.Graph;
 import shared.Generator;
+import shared.Parallel;
 
 import java.io.IOException;
 import java.util.*;
@@ -13,6 +14,8 @@ import java.util.*;
 // Title: Traffic-aware multiple mix zone placement for protecting location privacy
 public class MixZone {
 
+    public static Long seed = null;     // the seed of the pseudonyms, null draws a new one in every run
+
     /**
      * @param radius the distance threshold that a mix zone can cover a point
      * @param max_mz the max number of mix-zone
@@ -43,7 +46,7 @@ public class MixZone {
 
         /* -- Step #2: Maximal independent set -- */
         startTimer = System.currentTimeMillis();
-        Set<Integer> mis = g.find_mis();
+        BitSet mis = g.find_mis();
         timecost = System.currentTimeMillis() - startTimer;
         System.out.printf("[TIME-COST] for maximal independent set: %.3f s, %.3f min\n\n", timecost / 1000f, timecost / (1000.0 * 60));
 
@@ -79,20 +82,48 @@ public class MixZone {
 
     /**
      * split original trajectories based on mix-zones
+     * the runs of consecutive trajectories of the same user are split in parallel, each with its own random stream,
+     * and gathered in the input order, so the output only depends on the seed
      *
      * @param anonymized_trajectories the collection of shorter trajectories
      */
     private static void anonymize(final Vector<Trajectory> trajectories, final Graph graph, final float radius, final int min_trj_len,
                                   Vector<Trajectory> anonymized_trajectories) {
-        Random rm = new Random();
+        final Trajectory[] all = trajectories.toArray(new Trajectory[0]);
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i].get_userId() != all[i - 1].get_userId()) {
+                starts.add(i);
+            }
+        }
+        starts.add(all.length);
+
+        final long base = seed != null ? seed : new Random().nextLong();
+        System.out.println("[INFO] seed of the pseudonyms = " + base);
+        final int runs = starts.size() - 1;
+        List<List<Trajectory>> results = new ArrayList<>(Collections.nCopies(runs, null));
+        Parallel.forEach(0, runs, r -> results.set(r,
+                anonymize(all, starts.get(r), starts.get(r + 1), graph, radius, min_trj_len, stream(base, r))));
+        for (List<Trajectory> result : results) {
+            anonymized_trajectories.addAll(result);
+        }
+    }
+
+    // the r-th element of the SplitMix64 sequence of the seed, as the seed of the r-th run
+    private static Random stream(final long seed, final int r) {
+        return new Random(new SplittableRandom(seed + 0x9E3779B97F4A7C15L * r).nextLong());
+    }
+
+    // the trajectories [from, to) of one user
+    private static List<Trajectory> anonymize(final Trajectory[] trajectories, final int from, final int to, final Graph graph,
+                                              final float radius, final int min_trj_len, final Random rm) {
+        List<Trajectory> anonymized_trajectories = new ArrayList<>();
         ArrayList<ComplexPoint> cur_pointSeq;
         Trajectory trj;
-        int uid = -1, trj_id, pseudonym_id, pre_vid, vid;
-        Set<Integer> existing_ids = new HashSet<>();
-        for (Trajectory original_trj : trajectories) {
-            if (original_trj.get_userId() != uid) {
-                existing_ids.clear();   // the pseudonym ids of the same user cannot be duplicated
-            }
+        int uid, trj_id, pseudonym_id, pre_vid, vid;
+        Set<Integer> existing_ids = new HashSet<>();    // the pseudonym ids of the same user cannot be duplicated
+        for (int i = from; i < to; i++) {
+            Trajectory original_trj = trajectories[i];
             uid = original_trj.get_userId();
             trj_id = original_trj.get_trajectoryId();
             cur_pointSeq = new ArrayList<>();
@@ -100,7 +131,7 @@ public class MixZone {
 
             for (int j = 0, len = original_trj.get_length(); j < len; j++) {
                 ComplexPoint p = original_trj.get_point_by_idx(j);
-                vid = graph.cover_by_mixzone(p, radius); // find the mix zone that this point went through
+                vid = graph.cover_by_mixzone(original_trj, j, radius); // find the mix zone that this point went through
                 if (vid != -1) {
                     pre_vid = (pre_vid >= 0) ? pre_vid : vid;   // NOTE that the valid vertex-id >= 0
                     if (vid != pre_vid && cur_pointSeq.size() >= min_trj_len) {
@@ -130,5 +161,6 @@ public class MixZone {
                 anonymized_trajectories.add(trj);
             }
         }
+        return anonymized_trajectories;
     }
 }
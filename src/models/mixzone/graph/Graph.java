@@ -1,7 +1,9 @@
 package models.mixzone.graph;
 
+import shared.Parallel;
 import spatial.Grid;
 import spatial.SimplePoint;
+import spatial.Trajectory;
 import models.Main;
 
 import java.io.BufferedReader;
@@ -11,61 +13,53 @@ import java.io.IOException;
 import java.util.*;
 
 // for POIs in road network
+// the undirected graph in a compressed sparse row layout: the neighbours of vertex u and the ids of the connecting edges
+// are adjNeighbor[adjStart[u] .. adjStart[u + 1]) and adjEdge[...], an edge taken out (a bridge edge) is only marked in removed
 public class Graph {
 
     int start_idx;  // the id of vertices may start from 1 or 0
     int num_vertex;
-    Vertex[] vertexList; // each vertex's adjacentList
-    int[] firstEdgeId;        // 指向顶点的第一条边（链表）
+    BitSet exists;          // the valid vertex ids
+    float[] longitude;      // indexed by vertex id
+    float[] latitude;
+    BitSet is_ap;           // articulation points
+    BitSet is_mixzone;
     int num_ap;
     int time;
 
     int num_edge;
-    Edge[] edgeList;    // key is edge-id
+    int[] adjStart;     // per vertex, the first position of its neighbours
+    int[] adjNeighbor;
+    int[] adjEdge;      // the edge id of each position
+    BitSet removed;     // bridge edges out of the adjacency, by edge id
+    int[] degree;       // # of neighbours over the edges not removed
     int num_bg;
 
     static Rng rng = new Rng();
+    private static final int BLOCK_WORDS = 64;  // # of bitset words (64 vertices each) per task of find_mis
     Grid grid;  // will be initialized when the max and min lng/lat are determined
-    Map<Long, Set<Integer>> gridIdx2vertices;
+    // the mix zones of each cell in a packed layout, cells in ascending order of ids
+    // the mix zones of the i-th cell are mixzoneVertices[mixzoneStart[i] .. mixzoneStart[i + 1])
+    long[] mixzoneCells = new long[0];
+    int[] mixzoneStart = new int[1];
+    int[] mixzoneVertices = new int[0];
+    // the cells having a mix zone in their surrounding cells, the only cells where cover_by_mixzone can find one
+    // null if the grid has too many cells for a bitmap
+    BitSet coverage;
+    private static final double KM_PER_DEGREE = 6378.137 * Math.PI / 180.0;    // the earth radius of SimplePoint.getDistance
 
     // constructor
     public Graph() {
         start_idx = 0;
         num_vertex = 0;
-        vertexList = null;
-        firstEdgeId = null;
+        exists = new BitSet();
+        is_ap = new BitSet();
+        is_mixzone = new BitSet();
         num_ap = 0;
         time = 0;
         num_edge = 0;
-        edgeList = null;
+        removed = new BitSet();
         num_bg = 0;
-        gridIdx2vertices = new HashMap<>();
-    }
-
-    Graph(Graph graph) {
-        start_idx = graph.start_idx;
-        num_vertex = graph.num_vertex;
-        num_ap = graph.num_ap;
-        time = graph.time;
-        vertexList = new Vertex[num_vertex + start_idx];
-        firstEdgeId = new int[num_vertex + start_idx];
-        if (start_idx == 1) {
-            vertexList[0] = null;
-            firstEdgeId[0] = -1;
-        }
-        for (int i = start_idx; i < num_vertex + start_idx; i++) {
-            vertexList[i] = new Vertex(graph.vertexList[i]);
-            firstEdgeId[i] = graph.firstEdgeId[i];
-        }
-        num_edge = graph.num_edge;
-        num_bg = graph.num_bg;
-        edgeList = new Edge[num_edge];
-        for (int i = 0; i < num_edge; i++) {
-            edgeList[i] = new Edge(graph.edgeList[i]);
-        }
-
-        grid = graph.grid;
-        gridIdx2vertices = graph.gridIdx2vertices;
     }
 
     private int count_lines(final String filename) throws IOException {
@@ -88,10 +82,8 @@ public class Graph {
             return;
         System.out.println("[REPORT] # of vertices = " + num_vertex);
 
-        if (vertexList == null) {
-            vertexList = new Vertex[num_vertex + 1];    // in case the vertex-id starts from 1
-            firstEdgeId = new int[num_vertex + 1];
-        }
+        longitude = new float[num_vertex + 1];    // in case the vertex-id starts from 1
+        latitude = new float[num_vertex + 1];
         BufferedReader br = new BufferedReader(new FileReader(v_file));
         String s;
         float lng_max = Float.NEGATIVE_INFINITY, lng_min = Float.POSITIVE_INFINITY;
@@ -103,7 +95,9 @@ public class Graph {
             int vid = Integer.parseInt(tokens[idPos]);
             float lat = Float.parseFloat(tokens[latPos]);
             float lng = Float.parseFloat(tokens[lngPos]);
-            vertexList[vid] = new Vertex(vid, lng, lat);
+            exists.set(vid);
+            longitude[vid] = lng;
+            latitude[vid] = lat;
             lng_max = Math.max(lng_max, lng);
             lng_min = Math.min(lng_min, lng);
             lat_max = Math.max(lat_max, lat);
@@ -111,48 +105,69 @@ public class Graph {
         }
         br.close();
 
-        if (vertexList[0] == null) {
+        if (!exists.get(0)) {
             start_idx = 1;
         }
         else {
-            vertexList[num_vertex] = null;  // vertex-id starts from 0, so the last one is invalid
+            exists.clear(num_vertex);  // vertex-id starts from 0, so the last one is invalid
         }
 
         System.out.println("[PROGRESS] Construct a grid for the vertices in the graph ...");
         grid = new Grid(lng_min, lng_max, lat_min, lat_max, lng_step, lat_step);
 
-        // initialize
-        for (int i = 0; i < num_vertex + start_idx; i++) {
-            firstEdgeId[i] = -1;
-        }
         // read edge file, aka road segments
-        // regard it as the undirected graph
+        // regard it as the undirected graph, each pair of endpoints (smaller << 32 | larger) once
         br = new BufferedReader(new FileReader(new File(e_file)));
-        Set<Edge> edges = new HashSet<>();
+        long[] edges = new long[Math.max(num_vertex, 16)];
+        int num = 0;
         while ((s = br.readLine()) != null) {
             String[] tokens = s.split(delimiter);
             int u = Integer.parseInt(tokens[1]);
             int v = Integer.parseInt(tokens[2]);
-            vertexList[u].add_neighbor(v);
-            vertexList[v].add_neighbor(u);
-            edges.add(new Edge(u, v));
+            if (num == edges.length) {
+                edges = Arrays.copyOf(edges, 2 * num);
+            }
+            edges[num++] = ((long) Math.min(u, v) << 32) | Math.max(u, v);
         }
         br.close();
-        num_edge = edges.size();
+        Arrays.sort(edges, 0, num);
+        num_edge = 0;
+        for (int i = 0; i < num; i++) {
+            if (i == 0 || edges[i] != edges[i - 1]) {
+                edges[num_edge++] = edges[i];
+            }
+        }
         System.out.println("[REPORT] # of edges = " + num_edge);
 
-        edgeList = new Edge[num_edge];
-        Iterator<Edge> itr = edges.iterator();
-        for (int i = 0; i < num_edge && itr.hasNext(); i++) {
-            Edge e = itr.next();
-            edgeList[i] = new Edge(e.get_endpoint_head(), e.get_endpoint_tail(),
-                    firstEdgeId[e.get_endpoint_head()], firstEdgeId[e.get_endpoint_tail()]);
-            firstEdgeId[e.get_endpoint_head()] = i;
-            firstEdgeId[e.get_endpoint_tail()] = i;
+        // a self-loop is a single neighbour
+        final int len = num_vertex + 1;
+        adjStart = new int[len + 1];
+        for (int e = 0; e < num_edge; e++) {
+            int u = (int) (edges[e] >>> 32), v = (int) edges[e];
+            adjStart[u + 1]++;
+            if (v != u) {
+                adjStart[v + 1]++;
+            }
+        }
+        for (int i = 0; i < len; i++) {
+            adjStart[i + 1] += adjStart[i];
+        }
+        adjNeighbor = new int[adjStart[len]];
+        adjEdge = new int[adjStart[len]];
+        int[] next = Arrays.copyOf(adjStart, len);
+        for (int e = 0; e < num_edge; e++) {
+            int u = (int) (edges[e] >>> 32), v = (int) edges[e];
+            adjNeighbor[next[u]] = v;
+            adjEdge[next[u]++] = e;
+            if (v != u) {
+                adjNeighbor[next[v]] = u;
+                adjEdge[next[v]++] = e;
+            }
+        }
+        degree = new int[len];
+        for (int i = 0; i < len; i++) {
+            degree[i] = adjStart[i + 1] - adjStart[i];
         }
-
-        edges.clear();
-        edges = null;
     }
 
     public void find_articulation_points() {
@@ -162,43 +177,32 @@ public class Graph {
         int[] searchFirst = new int[len];   //指向顶点的第一条未搜索的边
         int[] children = new int[len];      //存储顶点的孩子数量
 
-        if (firstEdgeId == null) {
-            System.out.println("Error: firstEdgeId is null.");
+        if (adjStart == null) {
+            System.out.println("Error: adjStart is null.");
             return;
         } else
-            System.arraycopy(firstEdgeId, start_idx, searchFirst, start_idx, num_vertex);
+            System.arraycopy(adjStart, start_idx, searchFirst, start_idx, num_vertex);
 
         time = 0;
 
         // to find articulation points in DFS tree rooted with vertex 'i'
         for (int i = start_idx; i < len; i++) {
-            if (vertexList[i] != null && discovery[i] == 0)
+            if (exists.get(i) && discovery[i] == 0)
                 APUtil(i, discovery, low_value, searchFirst, children);
         }
 
         // print articulation points
-        for (int i = start_idx; i < len; i++) {
-            Vertex u = vertexList[i];
-            if (u.is_ap) {
-                num_ap++;
-            }
-        }
+        num_ap = is_ap.cardinality();
         System.out.println("[REPORT] # of all articulation points: " + num_ap);
 
         // to remove bridge edges in the graph based on ap
         // so that the graph will transform to several disconnected components
-        for (int i = start_idx; i < len; i++) {
-            if (vertexList[i] != null && vertexList[i].is_ap) {
-                int eid = firstEdgeId[i];
-                while (eid != -1) {
-                    Integer neighbor = edgeList[eid].find_another_endpoint(i);
-                    if (vertexList[neighbor].is_ap && !edgeList[eid].is_bg) {
-                        num_bg++;
-                        edgeList[eid].is_bg = true;
-                        vertexList[i].remove_neighbor(neighbor);
-                        vertexList[neighbor].remove_neighbor(i);
-                    }
-                    eid = edgeList[eid].get_next(i);
+        for (int i = is_ap.nextSetBit(start_idx); i >= 0 && i < len; i = is_ap.nextSetBit(i + 1)) {
+            for (int pos = adjStart[i]; pos < adjStart[i + 1]; pos++) {
+                int neighbor = adjNeighbor[pos], eid = adjEdge[pos];
+                if (is_ap.get(neighbor) && !removed.get(eid)) {
+                    num_bg++;
+                    remove_edge(eid, i, neighbor);
                 }
             }
         }
@@ -222,14 +226,12 @@ public class Graph {
         int top = 0;
         stack[top] = root;
         discovery[root] = low_value[root] = ++time;
-        Edge edge;
         while (top >= 0) {
             int cur_vertex = stack[top];
-            int eid = searchFirst[cur_vertex];
-            if (eid != -1) {
-                edge = edgeList[eid];
-                searchFirst[cur_vertex] = edge.get_next(cur_vertex);
-                int neighbor = edge.find_another_endpoint(cur_vertex);      // should be endpoint_head
+            int pos = searchFirst[cur_vertex];
+            if (pos < adjStart[cur_vertex + 1]) {
+                searchFirst[cur_vertex] = pos + 1;
+                int neighbor = adjNeighbor[pos];
                 if (discovery[neighbor] == 0) {   // hasn't been visited
                     children[cur_vertex]++;     // become cur_vertex's child
                     stack[++top] = neighbor;    // push
@@ -242,7 +244,7 @@ public class Graph {
                     int u = stack[top - 1];
                     low_value[u] = Math.min(low_value[u], low_value[cur_vertex]);
                     if ((u != root && low_value[cur_vertex] >= discovery[u]) || (u == root && children[u] >= 2)) {
-                        vertexList[u].is_ap = true;
+                        is_ap.set(u);
                     }
                 }
                 top--;
@@ -250,173 +252,346 @@ public class Graph {
         }
     }
 
-    /* Favor vertices with fewer neighbors */
-    private Set<Integer> select() {
-        Set<Integer> random = new HashSet<>();
-        for (int i = start_idx; i < num_vertex + start_idx; i++) {
-            if (vertexList[i] != null) {
-                if (rng.probability() < 1.0 / (2 * vertexList[i].get_degree())) {
-                    random.add(i);
-                }
-            }
+    // take the edge between u and v out of the adjacency
+    private void remove_edge(int eid, int u, int v) {
+        removed.set(eid);
+        degree[u]--;
+        if (v != u) {
+            degree[v]--;
         }
-        return random;
     }
 
-    boolean is_empty() {
-        for (int i = start_idx; i < num_vertex + start_idx; i++) {
-            if (vertexList[i] != null)
-                return false;
+    // put all removed edges of u back into the adjacency
+    private void recover_edges(int u) {
+        for (int pos = adjStart[u]; pos < adjStart[u + 1]; pos++) {
+            int eid = adjEdge[pos];
+            if (removed.get(eid)) {
+                removed.clear(eid);
+                degree[u]++;
+                if (adjNeighbor[pos] != u) {
+                    degree[adjNeighbor[pos]]++;
+                }
+            }
         }
-        return true;
     }
 
-    void remove_vertex(int id) {
-        if (id < num_vertex + start_idx) {
-            vertexList[id] = null;
+    // Luby's algorithm over the bitset of vertices still alive, no copy of the graph is needed
+    // in each round every alive vertex becomes a candidate with probability 1 / (2 * # of alive neighbours),
+    // favoring vertices with fewer neighbors; a candidate adjacent to a stronger one (more alive neighbours,
+    // or as many and a larger id) steps back, the others join the mis and leave with their neighbours
+    // a round runs in parallel over blocks of whole words, and the draw of a vertex only depends on the seed,
+    // the round and its id, so the mis is the same for any # of threads
+    public BitSet find_mis() {
+        final int len = num_vertex + start_idx;
+        final int words = (len + 63) >>> 6;
+        final int blocks = (words + BLOCK_WORDS - 1) / BLOCK_WORDS;
+        final long[] alive = Arrays.copyOf(exists.get(0, len).toLongArray(), words);
+        final long[] candidate = new long[words];
+        final long[] joined = new long[words];
+        final long[] left = new long[words];
+        final int[] live_degree = new int[len];
+        final int[] live_block = new int[blocks];
+        for (int i = 0; i < start_idx; i++) {
+            alive[i >>> 6] &= ~(1L << i);
         }
-    }
 
-    public Set<Integer> find_mis() {
-        Set<Integer> mis = new HashSet<>();
-        Graph graph_copy = new Graph(this);
-        while (!graph_copy.is_empty()) {
-            Set<Integer> vertices = graph_copy.select();
-            Set<Integer> to_be_removed = new HashSet<>();
-            for (int uid : vertices) {
-                Vertex u = graph_copy.vertexList[uid];
-                if (u != null) {
-                    // scan its adjacent neighbours
-                    for (int j = 0, degree = u.get_degree(); j < degree; j++) {
-                        int neighbor = u.get_neighbor_by_idx(j);
-                        if (vertices.contains(neighbor) && !to_be_removed.contains(neighbor)) {
-                            int v_degree = graph_copy.vertexList[neighbor].get_degree();
-                            // remove the one with less neighbors
-                            to_be_removed.add((degree < v_degree) ? uid : neighbor);
+        long live = 0;
+        for (long word : alive) {
+            live += Long.bitCount(word);
+        }
+        BitSet mis = new BitSet(len);
+        int rounds = 0;
+        for (; live > 0; rounds++) {
+            final long round = rounds;
+            // the candidates
+            Parallel.forEach(0, blocks, b -> {
+                for (int w = b * BLOCK_WORDS, end = Math.min(w + BLOCK_WORDS, words); w < end; w++) {
+                    long bits = 0;
+                    for (long rest = alive[w]; rest != 0; rest &= rest - 1) {
+                        int v = (w << 6) + Long.numberOfTrailingZeros(rest);
+                        int d = 0;
+                        for (int pos = adjStart[v]; pos < adjStart[v + 1]; pos++) {
+                            if (!removed.get(adjEdge[pos]) && has(alive, adjNeighbor[pos])) {
+                                d++;
+                            }
+                        }
+                        live_degree[v] = d;
+                        if (rng.probability(round, v) < 1.0 / (2 * d)) {
+                            bits |= 1L << v;
                         }
                     }
+                    candidate[w] = bits;
                 }
-            }
-
-            vertices.removeAll(to_be_removed);
-            mis.addAll(vertices);
-            for (int vid : vertices) {
-                Vertex u = graph_copy.vertexList[vid];
-                if (u != null) {
-                    // remove its all adjacent neighbours
-                    for (int j = 0, degree = u.get_degree(); j < degree; j++) {
-                        int v = u.get_neighbor_by_idx(j);
-                        graph_copy.remove_vertex(v);
+            });
+            // the candidates not beaten by a neighbouring one
+            Parallel.forEach(0, blocks, b -> {
+                for (int w = b * BLOCK_WORDS, end = Math.min(w + BLOCK_WORDS, words); w < end; w++) {
+                    long bits = candidate[w];
+                    for (long rest = candidate[w]; rest != 0; rest &= rest - 1) {
+                        int v = (w << 6) + Long.numberOfTrailingZeros(rest);
+                        for (int pos = adjStart[v]; pos < adjStart[v + 1]; pos++) {
+                            int u = adjNeighbor[pos];
+                            if (u != v && !removed.get(adjEdge[pos]) && has(candidate, u)
+                                    && (live_degree[u] > live_degree[v] || (live_degree[u] == live_degree[v] && u > v))) {
+                                bits &= ~(1L << v);
+                                break;
+                            }
+                        }
+                    }
+                    joined[w] = bits;
+                }
+            });
+            // the vertices neither joined nor adjacent to a joined one
+            Parallel.forEach(0, blocks, b -> {
+                int count = 0;
+                for (int w = b * BLOCK_WORDS, end = Math.min(w + BLOCK_WORDS, words); w < end; w++) {
+                    long bits = alive[w] & ~joined[w];
+                    for (long rest = bits; rest != 0; rest &= rest - 1) {
+                        int v = (w << 6) + Long.numberOfTrailingZeros(rest);
+                        for (int pos = adjStart[v]; pos < adjStart[v + 1]; pos++) {
+                            if (!removed.get(adjEdge[pos]) && has(joined, adjNeighbor[pos])) {
+                                bits &= ~(1L << v);
+                                break;
+                            }
+                        }
                     }
-                    graph_copy.remove_vertex(vid);
+                    left[w] = bits;
+                    count += Long.bitCount(bits);
                 }
+                live_block[b] = count;
+            });
+
+            mis.or(BitSet.valueOf(joined));
+            System.arraycopy(left, 0, alive, 0, words);
+            live = 0;
+            for (int count : live_block) {
+                live += count;
             }
         }
 
-        System.out.println("[REPORT] The size of Maximal Independent Set = " + mis.size());
+        System.out.println("[REPORT] The size of Maximal Independent Set = " + mis.cardinality() + " after " + rounds + " rounds");
         return mis;
     }
 
-    public int set_mix_zone(Set<Integer> mis, int k) {
+    private static boolean has(final long[] bits, final int i) {
+        return (i >>> 6) < bits.length && (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public int set_mix_zone(BitSet mis, int k) {
         Set<Integer> candidates = new HashSet<>();
-        for (int i = start_idx; i < num_vertex + start_idx; i++) {
-            if (vertexList[i] != null) {
-                // a vertex which is either an ap or excluded by the mis
-                // will be the candidate of mix zones
-                if (vertexList[i].is_ap || !mis.contains(i)) {
-                    candidates.add(i);
-                }
+        BitSet is_candidate = new BitSet(num_vertex + start_idx);
+        for (int i = exists.nextSetBit(start_idx); i >= 0 && i < num_vertex + start_idx; i = exists.nextSetBit(i + 1)) {
+            // a vertex which is either an ap or excluded by the mis
+            // will be the candidate of mix zones
+            if (is_ap.get(i) || !mis.get(i)) {
+                candidates.add(i);
+                is_candidate.set(i);
             }
         }
 
-        Map<Integer, Integer> vertex2associations = new HashMap<>();
+        // a candidate is keyed by its association and then by its rank,
+        // the rank keeps the order in which the candidates were scanned before, so that ties are removed in the same order
+        AssociationHeap heap = new AssociationHeap(num_vertex + start_idx, candidates.size());
+        int rank = 0;
         for (int vid : candidates) {
-            Vertex u = vertexList[vid];
             int association = 0;
-            for (int j = 0, degree = u.get_degree(); j < degree; j++) {
-                int neighbor = u.get_neighbor_by_idx(j);
-                if (!candidates.contains(neighbor))
+            for (int pos = adjStart[vid]; pos < adjStart[vid + 1]; pos++) {
+                if (!removed.get(adjEdge[pos]) && !is_candidate.get(adjNeighbor[pos]))
                     association++;
             }
-            vertex2associations.put(vid, association);
+            heap.add(vid, association, rank++);
         }
 
         // iteratively remove the vertex that
         // introduces the least number of pairwise association increment
         // from the mix zone candidate set
-        while (candidates.size() > k) {
-            int min_candidate = find_min(vertex2associations);
-            Vertex u_remove = vertexList[min_candidate];
-            candidates.remove(min_candidate);
-            vertex2associations.remove(min_candidate);
-
-            if (u_remove.is_ap) {
-                int eid = firstEdgeId[min_candidate];
-                while (eid != -1) {
-                    // recover the adjacent relation between v and min_candidate
-                    // as this vertex will not be the mix zone and this edge is not bridge edge
-                    int v = edgeList[eid].find_another_endpoint(min_candidate);
-                    u_remove.add_neighbor(v);
-                    vertexList[v].add_neighbor(min_candidate);
-                    edgeList[eid].is_bg = false;
-                    eid = edgeList[eid].get_next(min_candidate);
-                }
+        while (heap.size() > k) {
+            int min_candidate = heap.poll();
+            is_candidate.clear(min_candidate);
+
+            if (is_ap.get(min_candidate)) {
+                // recover the adjacent relation between v and min_candidate
+                // as this vertex will not be the mix zone and this edge is not bridge edge
+                recover_edges(min_candidate);
             }
 
-            for (int i = 0, degree = u_remove.get_degree(); i < degree; i++) {
-                int vid = u_remove.get_neighbor_by_idx(i);
-                vertex2associations.computeIfPresent(vid, (key, value) -> value + 1);
+            for (int pos = adjStart[min_candidate]; pos < adjStart[min_candidate + 1]; pos++) {
+                if (!removed.get(adjEdge[pos]) && is_candidate.get(adjNeighbor[pos])) {
+                    heap.increase(adjNeighbor[pos]);
+                }
             }
         }
 
         // print-out mix zones
 //        if (Main.DEBUG) System.out.print("[REPORT] Final mix zones: ");
         int mmz = 0;
-        for (int vid : candidates) {
+        Map<Long, Set<Integer>> gridIdx2vertices = new HashMap<>();
+        for (int vid = is_candidate.nextSetBit(0); vid >= 0; vid = is_candidate.nextSetBit(vid + 1)) {
             mmz++;
-            vertexList[vid].is_mixzone = true;
+            is_mixzone.set(vid);
 
-            Vertex u = vertexList[vid];
             // for grid index
-            long gid = grid.get_gridId_by_lnglat(u.longitude, u.latitude);
+            long gid = grid.get_gridId_by_lnglat(longitude[vid], latitude[vid]);
             Set<Integer> vids = gridIdx2vertices.compute(gid, (key, value) -> value == null ? new HashSet<>() : value);
             vids.add(vid);
         }
 
         System.out.println("[REPORT] # of valid grids that contain mix-zones = " + gridIdx2vertices.size());
+        build_mixzone_index(gridIdx2vertices);
 
         return mmz;
     }
 
-    int find_min(Map<Integer, Integer> vertex2associations) {
-        int min_value = Integer.MAX_VALUE;
-        int min_id = -1;
-        for (Map.Entry<Integer, Integer> entry : vertex2associations.entrySet()) {
-            if (entry.getValue() < min_value) {
-                min_id = entry.getKey();
-                min_value = entry.getValue();
+    // packs the mix zones of each cell, in the order of the hash set so that equally near mix zones are found as before,
+    // and rasterizes the cells they cover
+    private void build_mixzone_index(final Map<Long, Set<Integer>> gridIdx2vertices) {
+        mixzoneCells = new long[gridIdx2vertices.size()];
+        int c = 0;
+        for (long gid : gridIdx2vertices.keySet()) {
+            mixzoneCells[c++] = gid;
+        }
+        Arrays.sort(mixzoneCells);
+
+        mixzoneStart = new int[mixzoneCells.length + 1];
+        int total = 0;
+        for (c = 0; c < mixzoneCells.length; c++) {
+            total += gridIdx2vertices.get(mixzoneCells[c]).size();
+            mixzoneStart[c + 1] = total;
+        }
+        mixzoneVertices = new int[total];
+        for (c = 0; c < mixzoneCells.length; c++) {
+            int pos = mixzoneStart[c];
+            for (int vid : gridIdx2vertices.get(mixzoneCells[c])) {
+                mixzoneVertices[pos++] = vid;
+            }
+        }
+
+        // cell g covers cell h iff h is one of the surrounding cells of g, and the other way round
+        coverage = null;
+        if (grid.numOfCellX_col * grid.numOfCellY_row <= Integer.MAX_VALUE) {
+            coverage = new BitSet();
+            long[] gids = new long[9];
+            for (long gid : mixzoneCells) {
+                for (int i = 0, n = grid.surrounding(gid, true, gids); i < n; i++) {
+                    coverage.set((int) gids[i]);
+                }
+            }
+        }
+    }
+
+    // an indexed binary min-heap of the candidates, keyed by (association << 32 | rank)
+    // where[vid] is the slot of a vertex in the heap, -1 if it is not there
+    private static final class AssociationHeap {
+        private final int[] heap;
+        private final long[] key;
+        private final int[] where;
+        private int size;
+
+        AssociationHeap(final int num_vertex, final int capacity) {
+            heap = new int[capacity];
+            key = new long[num_vertex];
+            where = new int[num_vertex];
+            Arrays.fill(where, -1);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(final int vid, final int association, final int rank) {
+            key[vid] = ((long) association << 32) | rank;
+            heap[size] = vid;
+            where[vid] = size;
+            up(size++);
+        }
+
+        // the vertex of the least key, taken out of the heap
+        int poll() {
+            int min = heap[0];
+            where[min] = -1;
+            if (--size > 0) {
+                heap[0] = heap[size];
+                where[heap[0]] = 0;
+                down(0);
             }
+            return min;
+        }
+
+        // one more association of a vertex in the heap
+        void increase(final int vid) {
+            key[vid] += 1L << 32;
+            down(where[vid]);
+        }
+
+        private void up(int i) {
+            int vid = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (key[heap[parent]] <= key[vid])
+                    break;
+                heap[i] = heap[parent];
+                where[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = vid;
+            where[vid] = i;
+        }
+
+        private void down(int i) {
+            int vid = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && key[heap[child + 1]] < key[heap[child]])
+                    child++;
+                if (key[vid] <= key[heap[child]])
+                    break;
+                heap[i] = heap[child];
+                where[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = vid;
+            where[vid] = i;
         }
-        return min_id;
     }
 
     public int cover_by_mixzone(final SimplePoint p, final float radius) {
-        Vector<Long> grids = grid.get_gridIds_by_lnglat(p.getLongitude(), p.getLatitude());
-        if (grids == null)
+        return cover_by_mixzone(p, grid.get_gridId_by_lnglat(p.getLongitude(), p.getLatitude()), radius);
+    }
+
+    // the idx-th point of trj, whose cell is looked up once per trajectory
+    public int cover_by_mixzone(final Trajectory trj, final int idx, final float radius) {
+        return cover_by_mixzone(trj.get_point_by_idx(idx), trj.get_gridIds(grid)[idx], radius);
+    }
+
+    // the nearest mix zone within radius among the surrounding cells, -1 if none
+    // a vertex surely farther than radius by the equirectangular distance skips the haversine one
+    private int cover_by_mixzone(final SimplePoint p, final long cell, final float radius) {
+        if (cell == -1 || mixzoneCells.length == 0 || (coverage != null && !coverage.get((int) cell)))
             return -1;
+        final float lng = p.getLongitude();
+        final float lat = p.getLatitude();
+        final double scale = Math.cos(lat * Math.PI / 180.0);
+        final double bound = radius * 1.01 + 1e-4;     // the error of the approximation and the rounding of getDistance
+        final double bound_sq = bound * bound / (KM_PER_DEGREE * KM_PER_DEGREE);
+
+        long[] gids = new long[9];
         int nearest_vid = -1;
         double min_dis = Double.MAX_VALUE;
-        float lng = p.getLongitude();
-        float lat = p.getLatitude();
-        for (long gid : grids) {
-            Set<Integer> vertices = gridIdx2vertices.get(gid);
-            if (vertices != null) {
-                for (int vid : vertices) {
-                    double dis = SimplePoint.getDistance(lng, lat, vertexList[vid].longitude, vertexList[vid].latitude);
-                    if (dis <= radius && dis < min_dis) {
-                        min_dis = dis;
-                        nearest_vid = vid;
-                    }
+        for (int i = 0, n = grid.surrounding(cell, true, gids); i < n; i++) {
+            int c = Arrays.binarySearch(mixzoneCells, gids[i]);
+            if (c < 0)
+                continue;
+            for (int pos = mixzoneStart[c]; pos < mixzoneStart[c + 1]; pos++) {
+                int vid = mixzoneVertices[pos];
+                double dx = (longitude[vid] - lng) * scale, dy = latitude[vid] - lat;
+                if (dx * dx + dy * dy > bound_sq)
+                    continue;
+                double dis = SimplePoint.getDistance(lng, lat, longitude[vid], latitude[vid]);
+                if (dis <= radius && dis < min_dis) {
+                    min_dis = dis;
+                    nearest_vid = vid;
                 }
             }
         }
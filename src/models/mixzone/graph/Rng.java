@@ -1,17 +1,29 @@
 package models.mixzone.graph;
 
-import org.apache.commons.math3.distribution.RealDistribution;
-import org.apache.commons.math3.distribution.UniformRealDistribution;
-
+// a counter-based uniform generator: the draw of (round, vertex) is a SplitMix64 hash of the seed and both keys,
+// so concurrent rounds split the stream by vertex and the result never depends on the order of the draws
 public class Rng {
-    private final RealDistribution distribution;
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private final long seed;
 
     Rng() {
-        distribution = new UniformRealDistribution(0, 1);
-        distribution.reseedRandomGenerator(64925784252L);
+        this(64925784252L);
+    }
+
+    Rng(final long seed) {
+        this.seed = seed;
+    }
+
+    // uniform in [0, 1)
+    double probability(final long round, final int vertex) {
+        long z = mix(seed + GOLDEN * (round + 1));
+        z = mix(z + GOLDEN * (vertex + 1L));
+        return (z >>> 11) * 0x1.0p-53;
     }
 
-    double probability() {
-        return distribution.sample();
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 }
@@ -5,6 +5,7 @@ import spatial.*;
 import java.io.*;
 import java.util.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
 public class FileInput {
 
@@ -88,6 +89,13 @@ public class FileInput {
         if (poi_file != null && !poi_file.isEmpty()) {
             File file = new File(poi_file);
             if (file.exists() && file.isFile()) {
+                final Path snapshot = GridSnapshot.locate(poi_file, lng_step, lat_step);
+                Grid cached = GridSnapshot.load(snapshot);
+                if (cached != null) {
+                    System.out.println("[PROGRESS] the grid is loaded from the snapshot " + snapshot);
+                    return cached;
+                }
+
                 float lng_max = Float.NEGATIVE_INFINITY, lng_min = Float.POSITIVE_INFINITY;
                 float lat_max = Float.NEGATIVE_INFINITY, lat_min = Float.POSITIVE_INFINITY;
                 Set<SimplePoint> pois = new HashSet<>();
@@ -120,6 +128,7 @@ public class FileInput {
                 br.close();
                 Grid grid = new Grid(lng_min, lng_max, lat_min, lat_max, lng_step, lat_step);
                 grid.addPoints(pois);
+                GridSnapshot.store(snapshot, grid);     // for the later runs
                 return grid;
             } else {
                 System.out.println("[ERROR] Cannot find the POI file.");
@@ -4,7 +4,6 @@ import spatial.ComplexPoint;
 import spatial.Trajectory;
 
 import java.io.*;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
 
@@ -28,11 +27,7 @@ public class FileOutput {
 
         StringBuilder sb = new StringBuilder();
         for (Trajectory trj : anonymized_trajectories) {
-            List<Integer> mergedIDs = new ArrayList<>();
-            if(trj.isMerged()) {
-                mergedIDs.addAll(trj.get_mergedIds());
-                mergedIDs.sort(Integer::compareTo);
-            }
+            int[] mergedIDs = trj.get_mergedIds();     // sorted
             for (int i = 0, len = trj.get_length(); i < len; i++) {
                 ComplexPoint p = trj.get_point_by_idx(i);
 
@@ -44,10 +39,9 @@ public class FileOutput {
 
                 if(ComplexPoint.needDelta){
                     sb.append("," + p.get_deltaSecond() + "," + p.get_deltaLongitude() + "," + p.get_deltaLatitude());
-                    mergedIDs.forEach(id -> sb.append("," + id));
-//                    for(int id: mergedIDs) {
-//                        sb.append("," + id);
-//                    }
+                    for(int id: mergedIDs) {
+                        sb.append("," + id);
+                    }
                 }
                 sb.append("\n");
             }
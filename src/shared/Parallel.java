@@ -0,0 +1,49 @@
+package shared;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+public class Parallel {
+
+    // 0 means using all available processors
+    private static int threads = 0;
+    private static ForkJoinPool pool = null;
+
+    public static synchronized void setThreads(final int num) {
+        if (num != threads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        threads = Math.max(num, 0);
+    }
+
+    public static int getThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    // the shared worker pool of all parallel stages, created on first use
+    public static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(getThreads());
+        }
+        return pool;
+    }
+
+    // run body(i) for every i in [from, to) on the shared pool
+    public static void forEach(final int from, final int to, final IntConsumer body) {
+        if (to - from <= 1 || getThreads() == 1) {
+            for (int i = from; i < to; i++) {
+                body.accept(i);
+            }
+            return;
+        }
+        ForkJoinPool workers = pool();
+        if (ForkJoinTask.getPool() == workers) {    // nested call from a worker, the stream already runs on this pool
+            IntStream.range(from, to).parallel().forEach(body);
+        } else {
+            workers.submit(() -> IntStream.range(from, to).parallel().forEach(body)).join();
+        }
+    }
+}
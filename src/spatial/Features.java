@@ -0,0 +1,64 @@
+package spatial;
+
+import java.util.List;
+
+// the facts derived from the points of one trajectory, computed once and shared by all models
+// immutable, see Trajectory.get_features() for when it is recomputed
+public final class Features {
+
+    // the bounding box of the exact and of the loose coordinates
+    public final float minLng, maxLng, minLat, maxLat;
+    public final float minLooseLng, maxLooseLng, minLooseLat, maxLooseLat;
+    // the time span of the exact and of the loose timestamps
+    public final long minTime, maxTime, minLooseTime, maxLooseTime;
+
+    Features(final List<ComplexPoint> points) {
+        float minLng = Float.POSITIVE_INFINITY, maxLng = Float.NEGATIVE_INFINITY;
+        float minLat = Float.POSITIVE_INFINITY, maxLat = Float.NEGATIVE_INFINITY;
+        float minLooseLng = Float.POSITIVE_INFINITY, maxLooseLng = Float.NEGATIVE_INFINITY;
+        float minLooseLat = Float.POSITIVE_INFINITY, maxLooseLat = Float.NEGATIVE_INFINITY;
+        long minTime = Long.MAX_VALUE, maxTime = Long.MIN_VALUE;
+        long minLooseTime = Long.MAX_VALUE, maxLooseTime = Long.MIN_VALUE;
+        for (ComplexPoint p : points) {
+            minLng = Math.min(minLng, p.getLongitude());
+            maxLng = Math.max(maxLng, p.getLongitude());
+            minLat = Math.min(minLat, p.getLatitude());
+            maxLat = Math.max(maxLat, p.getLatitude());
+            minLooseLng = Math.min(minLooseLng, p.get_looseLongitude());
+            maxLooseLng = Math.max(maxLooseLng, p.get_looseLongitude());
+            minLooseLat = Math.min(minLooseLat, p.get_looseLatitude());
+            maxLooseLat = Math.max(maxLooseLat, p.get_looseLatitude());
+            minTime = Math.min(minTime, p.get_exactTime());
+            maxTime = Math.max(maxTime, p.get_exactTime());
+            minLooseTime = Math.min(minLooseTime, p.get_looseTime());
+            maxLooseTime = Math.max(maxLooseTime, p.get_looseTime());
+        }
+        this.minLng = minLng;
+        this.maxLng = maxLng;
+        this.minLat = minLat;
+        this.maxLat = maxLat;
+        this.minLooseLng = minLooseLng;
+        this.maxLooseLng = maxLooseLng;
+        this.minLooseLat = minLooseLat;
+        this.maxLooseLat = maxLooseLat;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.minLooseTime = minLooseTime;
+        this.maxLooseTime = maxLooseTime;
+    }
+
+    // the cell id of each point in one grid, -1 for a point out of the grid
+    static final class Cells {
+        final Grid grid;
+        final long[] ids;
+
+        Cells(final Grid grid, final List<ComplexPoint> points) {
+            this.grid = grid;
+            ids = new long[points.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ComplexPoint p = points.get(i);
+                ids[i] = grid.get_gridId_by_lnglat(p.getLongitude(), p.getLatitude());
+            }
+        }
+    }
+}
@@ -1,17 +1,19 @@
 package spatial;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static spatial.SimplePoint.getDistance;
 
+// the fields of the index are package-private for GridSnapshot
 public class Grid {
-    private float latitude_max;
-    private float latitude_min;
-    private float longitude_max;
-    private float longitude_min;
+    float latitude_max;
+    float latitude_min;
+    float longitude_max;
+    float longitude_min;
 
-    private float latitude_step;     // the given step length
-    private float longitude_step;
+    float latitude_step;     // the given step length
+    float longitude_step;
 
     public float horizontal_size;
     public float vertical_size;
@@ -19,12 +21,29 @@ public class Grid {
     public long numOfCellX_col;   // longitude
     public long numOfCellY_row;   // latitude
 
-    Map<Long, Set<SimplePoint>> gridIdx2Nodes;
-
-    // for KLT
-    Map<Integer, Integer[]> gridIdx2category;
+    // the POIs of each cell in a compressed sparse row layout, cells in ascending order of ids
+    int[] poiCells = new int[0];          // the ids of the cells holding POIs
+    int[] poiStart = new int[1];          // the POIs of the i-th cell are [poiStart[i], poiStart[i + 1])
+    float[] poiLng = new float[0];
+    float[] poiLat = new float[0];
+    int[] poiCategory = new int[0];
+    // the POIs of a cell as points, materialized on first use so that a cell always gives the same objects
+    private final Map<Long, Set<SimplePoint>> gridIdx2Nodes = new ConcurrentHashMap<>();
+
+    // for KLT: the categorized POIs of each cell in a compressed sparse row layout, cells in ascending order of ids
+    int[] categoryCells = new int[0];     // the ids of the cells holding categorized POIs
+    int[] categoryStart = new int[1];     // the entries of the i-th cell are [categoryStart[i], categoryStart[i + 1])
+    int[] categoryIds = new int[0];       // per entry, a category present in the cell (ascending within a cell)
+    int[] categoryCounts = new int[0];    // and its # of POIs
+    private int[] cellSlots = new int[]{-1};       // open addressing from a cell id to its index in categoryCells, -1 if empty
+    double[] categoryDistribution;        // the share of each category over all cells, computed on first use
     public static int TotalCategoryNum;
 
+    // for KLT: summed-area tables of all categories over the box of cells holding categorized POIs, null if too large
+    // the entry of (r, c, category) counts the POIs in the cells [0, r) x [0, c) of the box, categories are interleaved
+    int[] categoryTable;
+    int tableRowMin, tableColMin, tableRows, tableCols;
+
     // set spatial range
     public Grid(float lng_min, float lng_max, float lat_min, float lat_max, float lng_step, float lat_step) {
         setBoundary(lng_min, lng_max, lat_min, lat_max, lng_step, lat_step);
@@ -79,9 +98,12 @@ public class Grid {
     }
 
     public void addPoints(Set<SimplePoint> points) {
-        gridIdx2Nodes = new HashMap<>();
-        gridIdx2category = new HashMap<>();
-        for (SimplePoint p : points) {
+        long[] cellPoi = new long[points.size()];          // gid << 32 | index of every POI
+        long[] cellCategory = new long[points.size()];     // gid << 32 | cid of every categorized POI
+        SimplePoint[] array = points.toArray(new SimplePoint[0]);
+        int num = 0;
+        for (int i = 0; i < array.length; i++) {
+            SimplePoint p = array[i];
             long gid = get_gridId_by_lnglat(p.getLongitude(), p.getLatitude());
             int a = (int) gid;
             if (a < 0) {
@@ -90,38 +112,230 @@ public class Grid {
             }
 
             // index of grid2points
-            Set<SimplePoint> ps = gridIdx2Nodes.compute(gid, (k, v) -> v == null ? new HashSet<>() : v);
-            ps.add(p);
+            cellPoi[i] = (gid << 32) | i;
 
             // index of grid2category
             int cid = p.getCategoryID();
             if (cid > 0) {
-                Integer[] categories = gridIdx2category.compute((int) gid, (k, v) -> {
-                    if (v == null) {
-                        Integer[] tmp = new Integer[TotalCategoryNum];
-                        Arrays.fill(tmp, 0);
-                        return tmp;
-                    } else {
-                        return v;
-                    }
-                });
-
-                categories[cid]++;
-//                gridIdx2category.put((int) gid, categories);
+                cellCategory[num++] = (gid << 32) | cid;
+            }
+        }
+        buildPoiIndex(cellPoi, array);
+        buildCategoryIndex(cellCategory, num);
+        buildCategoryTables();
+    }
+
+    // group the POIs by cell, in their order within a cell
+    private void buildPoiIndex(long[] cellPoi, final SimplePoint[] points) {
+        Arrays.sort(cellPoi);
+        int cells = 0;
+        for (int i = 0; i < cellPoi.length; i++) {
+            if (i == 0 || (cellPoi[i] >>> 32) != (cellPoi[i - 1] >>> 32)) {
+                cells++;
+            }
+        }
+        poiCells = new int[cells];
+        poiStart = new int[cells + 1];
+        poiLng = new float[cellPoi.length];
+        poiLat = new float[cellPoi.length];
+        poiCategory = new int[cellPoi.length];
+        for (int i = 0, cell = -1; i < cellPoi.length; i++) {
+            if (i == 0 || (cellPoi[i] >>> 32) != (cellPoi[i - 1] >>> 32)) {
+                cell++;
+                poiCells[cell] = (int) (cellPoi[i] >>> 32);
+                poiStart[cell] = i;
+            }
+            SimplePoint p = points[(int) cellPoi[i]];
+            poiLng[i] = p.getLongitude();
+            poiLat[i] = p.getLatitude();
+            poiCategory[i] = p.getCategoryID();
+        }
+        poiStart[cells] = cellPoi.length;
+        gridIdx2Nodes.clear();
+    }
+
+    // run-length encode the sorted (cell, category) pairs
+    private void buildCategoryIndex(long[] cellCategory, final int num) {
+        Arrays.sort(cellCategory, 0, num);
+        int cells = 0, entries = 0;
+        for (int i = 0; i < num; i++) {
+            if (i == 0 || cellCategory[i] != cellCategory[i - 1]) {
+                entries++;
+                if (i == 0 || (cellCategory[i] >>> 32) != (cellCategory[i - 1] >>> 32)) {
+                    cells++;
+                }
+            }
+        }
+        categoryCells = new int[cells];
+        categoryStart = new int[cells + 1];
+        categoryIds = new int[entries];
+        categoryCounts = new int[entries];
+        for (int i = 0, cell = -1, entry = -1; i < num; i++) {
+            if (i == 0 || cellCategory[i] != cellCategory[i - 1]) {
+                entry++;
+                if (i == 0 || (cellCategory[i] >>> 32) != (cellCategory[i - 1] >>> 32)) {
+                    cell++;
+                    categoryCells[cell] = (int) (cellCategory[i] >>> 32);
+                    categoryStart[cell] = entry;
+                }
+                categoryIds[entry] = (int) cellCategory[i];
+            }
+            categoryCounts[entry]++;
+        }
+        categoryStart[cells] = entries;
+        buildCellSlots();
+    }
+
+    // a hash table at most half full, so that a lookup of an empty cell stops early
+    void buildCellSlots() {
+        final int cells = categoryCells.length;
+        int capacity = Integer.highestOneBit(Math.max(2 * cells, 1)) * 2;
+        cellSlots = new int[capacity];
+        Arrays.fill(cellSlots, -1);
+        for (int x = 0; x < cells; x++) {
+            int slot = slotOf(categoryCells[x]);
+            while (cellSlots[slot] >= 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            cellSlots[slot] = x;
+        }
+    }
+
+    private int slotOf(final int gid) {
+        return (gid * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(cellSlots.length)) & (cellSlots.length - 1);
+    }
+
+    // the index of the cell in categoryCells, -1 if it holds no categorized POI
+    private int findCategoryCell(final int gid) {
+        for (int slot = slotOf(gid); cellSlots[slot] >= 0; slot = (slot + 1) & (cellSlots.length - 1)) {
+            if (categoryCells[cellSlots[slot]] == gid) {
+                return cellSlots[slot];
+            }
+        }
+        return -1;
+    }
+
+    void buildCategoryTables() {
+        categoryTable = null;
+        if (categoryCells.length == 0) {
+            return;
+        }
+        int rowMin = Integer.MAX_VALUE, rowMax = -1, colMin = Integer.MAX_VALUE, colMax = -1;
+        for (int gid : categoryCells) {
+            int row = (int) (gid / numOfCellX_col), col = (int) (gid % numOfCellX_col);
+            rowMin = Math.min(rowMin, row);
+            rowMax = Math.max(rowMax, row);
+            colMin = Math.min(colMin, col);
+            colMax = Math.max(colMax, col);
+        }
+        final int rows = rowMax - rowMin + 1, cols = colMax - colMin + 1, num = TotalCategoryNum;
+
+        // at most a quarter of the heap, otherwise KLT looks the cells up one by one
+        long entries = (rows + 1L) * (cols + 1L) * num;
+        long limit = Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 4 / Integer.BYTES);
+        if (entries > limit) {
+            System.out.printf("[ALERT] the category tables of %d * %d cells are too large, categories are counted cell by cell.\n", rows, cols);
+            return;
+        }
+
+        int[] table = new int[(int) entries];
+        final int width = (cols + 1) * num;
+        for (int x = 0; x < categoryCells.length; x++) {
+            int r = (int) (categoryCells[x] / numOfCellX_col) - rowMin + 1, c = (int) (categoryCells[x] % numOfCellX_col) - colMin + 1;
+            for (int e = categoryStart[x]; e < categoryStart[x + 1]; e++) {
+                table[r * width + c * num + categoryIds[e]] = categoryCounts[e];
+            }
+        }
+        for (int r = 1; r <= rows; r++) {
+            for (int c = 1; c <= cols; c++) {
+                int at = r * width + c * num, up = at - width, left = at - num, upLeft = up - num;
+                for (int i = 0; i < num; i++) {
+                    table[at + i] += table[up + i] + table[left + i] - table[upLeft + i];
+                }
             }
         }
+        categoryTable = table;
+        tableRowMin = rowMin;
+        tableColMin = colMin;
+        tableRows = rows;
+        tableCols = cols;
+    }
+
+    public boolean hasCategoryTables() {
+        return categoryTable != null;
     }
 
+    // the # of POIs per category within the cells [rowMin, rowMax] x [colMin, colMax], in O(# of categories)
+    public void countCategories(int rowMin, int rowMax, int colMin, int colMax, int[] totals) {
+        Arrays.fill(totals, 0);
+        int r0 = Math.max(rowMin - tableRowMin, 0), r1 = Math.min(rowMax - tableRowMin + 1, tableRows);
+        int c0 = Math.max(colMin - tableColMin, 0), c1 = Math.min(colMax - tableColMin + 1, tableCols);
+        if (r0 >= r1 || c0 >= c1) {     // outside the box, no categorized POI
+            return;
+        }
+        final int num = TotalCategoryNum, width = (tableCols + 1) * num;
+        final int a = r1 * width + c1 * num, b = r0 * width + c1 * num, c = r1 * width + c0 * num, d = r0 * width + c0 * num;
+        for (int i = 0; i < num; i++) {
+            totals[i] = categoryTable[a + i] - categoryTable[b + i] - categoryTable[c + i] + categoryTable[d + i];
+        }
+    }
+
+    // null if the cell holds no POI
     public Set<SimplePoint> get_POIs_by_gridId(long gid) {
-        return gridIdx2Nodes.get(gid);
+        final int x = gid < 0 || gid > Integer.MAX_VALUE ? -1 : Arrays.binarySearch(poiCells, (int) gid);
+        if (x < 0) {
+            return null;
+        }
+        return gridIdx2Nodes.computeIfAbsent(gid, k -> {
+            Set<SimplePoint> ps = new HashSet<>();
+            for (int e = poiStart[x]; e < poiStart[x + 1]; e++) {
+                ps.add(new SimplePoint(poiLng[e], poiLat[e], poiCategory[e]));
+            }
+            return ps;
+        });
     }
 
-    public Map<Integer, Integer[]> get_categories() {
-        return gridIdx2category;
+    // the POI distribution of the overall city, the share of each category
+    public double[] get_categoryDistribution() {
+        double[] distribution = categoryDistribution;
+        if (distribution == null) {
+            int[] countArray = get_categoryTotals();
+            double sum = 0;
+            for (int cnt : countArray) {
+                sum += cnt;
+            }
+            distribution = new double[countArray.length];
+            for (int i = 0; i < distribution.length; i++) {
+                distribution[i] = countArray[i] / sum;
+            }
+            categoryDistribution = distribution;
+        }
+        return distribution;
     }
 
-    public Integer[] get_category_by_gridId(int gid) {
-        return gridIdx2category.get(gid);
+    // the # of POIs per category over all cells
+    public int[] get_categoryTotals() {
+        int[] totals = new int[TotalCategoryNum];
+        for (int e = 0; e < categoryIds.length; e++) {
+            totals[categoryIds[e]] += categoryCounts[e];
+        }
+        return totals;
+    }
+
+    // add the POIs per category of one cell to totals, the # of categories that were absent from totals is returned
+    public int add_categories_by_gridId(int gid, int[] totals) {
+        int x = findCategoryCell(gid);
+        if (x < 0) {
+            return 0;
+        }
+        int added = 0;
+        for (int e = categoryStart[x]; e < categoryStart[x + 1]; e++) {
+            if (totals[categoryIds[e]] == 0) {
+                added++;
+            }
+            totals[categoryIds[e]] += categoryCounts[e];
+        }
+        return added;
     }
 
     public long get_gridId_by_lnglat(float lng, float lat) {
@@ -148,36 +362,46 @@ public class Grid {
     }
 
     public Vector<Long> surrounding(long gid, boolean itself) {
-        Vector<Long> results = new Vector<>();
+        long[] gids = new long[9];
+        int n = surrounding(gid, itself, gids);
+        Vector<Long> results = new Vector<>(n);
+        for (int i = 0; i < n; i++) {
+            results.add(gids[i]);
+        }
+        return results;
+    }
+
+    // the same cells in the same order, written into results (at least 9 long), returns their #
+    public int surrounding(long gid, boolean itself, long[] results) {
+        int n = 0;
         if (itself) {
-            results.add(gid);
+            results[n++] = gid;
         }
         if (!is_invalid(gid - 1)) { // left
-            results.add(gid - 1);
+            results[n++] = gid - 1;
         }
         if (!is_invalid(gid + 1)) { // right
-            results.add(gid + 1);
+            results[n++] = gid + 1;
         }
         if (!is_invalid(gid - numOfCellX_col)) {  // up
-            results.add(gid - numOfCellX_col);
+            results[n++] = gid - numOfCellX_col;
         }
         if (!is_invalid(gid - numOfCellX_col - 1)) {
-            results.add(gid - numOfCellX_col - 1);
+            results[n++] = gid - numOfCellX_col - 1;
         }
         if (!is_invalid(gid - numOfCellX_col + 1)) {
-            results.add(gid - numOfCellX_col + 1);
+            results[n++] = gid - numOfCellX_col + 1;
         }
         if (!is_invalid(gid + numOfCellX_col)) {  // down
-            results.add(gid + numOfCellX_col);
+            results[n++] = gid + numOfCellX_col;
         }
         if (!is_invalid(gid + numOfCellX_col - 1)) {  // down
-            results.add(gid + numOfCellX_col - 1);
+            results[n++] = gid + numOfCellX_col - 1;
         }
         if (!is_invalid(gid + numOfCellX_col + 1)) {  // down
-            results.add(gid + numOfCellX_col + 1);
+            results[n++] = gid + numOfCellX_col + 1;
         }
-
-        return results;
+        return n;
     }
 
     public float[] get_lnglat_by_gridId(int row, int col) {
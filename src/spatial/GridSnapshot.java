@@ -0,0 +1,200 @@
+package spatial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// the POI grid persisted on disk after it is built from the POI file, so that later runs of Dummy and KLT
+// map it instead of parsing and classifying every POI again
+// it keeps the boundary, the POIs and the category counts of every cell, the global distribution and the summed-area tables
+// the file name is a digest of the POI file (path, size and modification time) and the steps
+public class GridSnapshot {
+
+    public static String folder = "";   // where the snapshots are kept, empty disables them
+
+    private static final int MAGIC = 0x47524431;    // "GRD1"
+    private static final int VERSION = 1;          // bump it whenever the categories or the layout change
+    private static final int HEADER = 72;          // 3 ints, 6 floats, 9 ints, see store
+    private static final int CHUNK = 1 << 26;      // # of elements mapped at a time, below the 2GB limit of a mapping
+
+    // the grid of the POI file, null if there is no valid snapshot
+    public static Grid load(final Path file) {
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER) {
+                System.out.println("[ALERT] invalid grid snapshot " + file + ", the grid is rebuilt");
+                return null;
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            final int magic = header.getInt(), version = header.getInt(), categories = header.getInt();
+            final float lngMin = header.getFloat(), lngMax = header.getFloat(), latMin = header.getFloat(), latMax = header.getFloat();
+            final float lngStep = header.getFloat(), latStep = header.getFloat();
+            final int cells = header.getInt(), entries = header.getInt(), poiCells = header.getInt(), pois = header.getInt();
+            final int table = header.getInt(), rowMin = header.getInt(), colMin = header.getInt(), rows = header.getInt(), cols = header.getInt();
+            long size = HEADER + 4L * (2L * cells + 1 + 2L * entries + 2L * poiCells + 1 + 3L * pois + table) + 8L * categories;
+            if (magic != MAGIC || version != VERSION || categories != Grid.TotalCategoryNum || channel.size() != size) {
+                System.out.println("[ALERT] invalid grid snapshot " + file + ", the grid is rebuilt");
+                return null;
+            }
+
+            Grid grid = new Grid(lngMin, lngMax, latMin, latMax, lngStep, latStep);
+            Sections in = new Sections(channel, HEADER, FileChannel.MapMode.READ_ONLY);
+            grid.categoryCells = in.ints(new int[cells]);
+            grid.categoryStart = in.ints(new int[cells + 1]);
+            grid.categoryIds = in.ints(new int[entries]);
+            grid.categoryCounts = in.ints(new int[entries]);
+            grid.poiCells = in.ints(new int[poiCells]);
+            grid.poiStart = in.ints(new int[poiCells + 1]);
+            grid.poiLng = in.floats(new float[pois]);
+            grid.poiLat = in.floats(new float[pois]);
+            grid.poiCategory = in.ints(new int[pois]);
+            grid.categoryDistribution = in.doubles(new double[categories]);
+            if (table > 0) {
+                grid.categoryTable = in.ints(new int[table]);
+                grid.tableRowMin = rowMin;
+                grid.tableColMin = colMin;
+                grid.tableRows = rows;
+                grid.tableCols = cols;
+            }
+            grid.buildCellSlots();
+            return grid;
+        } catch (IOException e) {
+            System.out.println("[ERROR] cannot read the grid snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // written aside and renamed so a reader never sees half a file
+    public static void store(final Path file, final Grid grid) {
+        if (file == null) {
+            return;
+        }
+        final int categories = Grid.TotalCategoryNum;
+        final double[] distribution = grid.get_categoryDistribution();
+        final int table = grid.categoryTable == null ? 0 : grid.categoryTable.length;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).putInt(categories)
+                        .putFloat(grid.longitude_min).putFloat(grid.longitude_max).putFloat(grid.latitude_min).putFloat(grid.latitude_max)
+                        .putFloat(grid.longitude_step).putFloat(grid.latitude_step)
+                        .putInt(grid.categoryCells.length).putInt(grid.categoryIds.length).putInt(grid.poiCells.length).putInt(grid.poiLng.length)
+                        .putInt(table).putInt(grid.tableRowMin).putInt(grid.tableColMin).putInt(grid.tableRows).putInt(grid.tableCols);
+                header.flip();
+                channel.write(header, 0);
+
+                Sections out = new Sections(channel, HEADER, FileChannel.MapMode.READ_WRITE);
+                out.ints(grid.categoryCells);
+                out.ints(grid.categoryStart);
+                out.ints(grid.categoryIds);
+                out.ints(grid.categoryCounts);
+                out.ints(grid.poiCells);
+                out.ints(grid.poiStart);
+                out.floats(grid.poiLng);
+                out.floats(grid.poiLat);
+                out.ints(grid.poiCategory);
+                out.doubles(distribution);
+                if (table > 0) {
+                    out.ints(grid.categoryTable);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("[ERROR] cannot write the grid snapshot " + file + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // the snapshot file of the POI file, null if the snapshots are disabled
+    public static Path locate(final String poi_file, final float lng_step, final float lat_step) {
+        if (folder == null || folder.isEmpty()) {
+            return null;
+        }
+        try {
+            File poi = new File(poi_file).getCanonicalFile();
+            String setting = String.format("%d|%s|%d|%d|%s|%s|%d", VERSION, poi.getPath(), poi.length(), poi.lastModified(),
+                    Float.toString(lng_step), Float.toString(lat_step), Grid.TotalCategoryNum);
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(setting.getBytes());
+
+            StringBuilder name = new StringBuilder("grid_");
+            for (int i = 0; i < 16; i++) {
+                name.append(String.format("%02x", hash[i]));
+            }
+            return Paths.get(folder, name.append(".bin").toString());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            System.out.println("[ERROR] the grid snapshot is skipped: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // consecutive arrays of the file, each mapped in chunks and copied in bulk
+    private static final class Sections {
+        private final FileChannel channel;
+        private final FileChannel.MapMode mode;
+        private long position;
+
+        Sections(final FileChannel channel, final long position, final FileChannel.MapMode mode) {
+            this.channel = channel;
+            this.position = position;
+            this.mode = mode;
+        }
+
+        private MappedByteBuffer next(final int len, final int bytes) throws IOException {
+            MappedByteBuffer buffer = channel.map(mode, position, (long) len * bytes);
+            position += (long) len * bytes;
+            return buffer;
+        }
+
+        int[] ints(int[] array) throws IOException {
+            for (int from = 0; from < array.length; from += CHUNK) {
+                int len = Math.min(CHUNK, array.length - from);
+                if (mode == FileChannel.MapMode.READ_ONLY) {
+                    next(len, Integer.BYTES).asIntBuffer().get(array, from, len);
+                } else {
+                    next(len, Integer.BYTES).asIntBuffer().put(array, from, len);
+                }
+            }
+            return array;
+        }
+
+        float[] floats(float[] array) throws IOException {
+            for (int from = 0; from < array.length; from += CHUNK) {
+                int len = Math.min(CHUNK, array.length - from);
+                if (mode == FileChannel.MapMode.READ_ONLY) {
+                    next(len, Float.BYTES).asFloatBuffer().get(array, from, len);
+                } else {
+                    next(len, Float.BYTES).asFloatBuffer().put(array, from, len);
+                }
+            }
+            return array;
+        }
+
+        double[] doubles(double[] array) throws IOException {
+            for (int from = 0; from < array.length; from += CHUNK) {
+                int len = Math.min(CHUNK, array.length - from);
+                if (mode == FileChannel.MapMode.READ_ONLY) {
+                    next(len, Double.BYTES).asDoubleBuffer().get(array, from, len);
+                } else {
+                    next(len, Double.BYTES).asDoubleBuffer().put(array, from, len);
+                }
+            }
+            return array;
+        }
+    }
+}
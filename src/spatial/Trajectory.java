@@ -15,7 +15,11 @@ public class Trajectory {
 
     // only for k-anonymity model
     private int k_anonymity;
-    private final Set<Integer> merged_ids;    // the merged userIDs (for linking attack evaluation)
+    private Members merged_ids;    // the merged userIDs (for linking attack evaluation), null if not merged
+
+    // derived from pointSeq on first use, dropped whenever the points are replaced
+    private Features features;
+    private Features.Cells cells;   // of the last grid asked for
 
     // default constructor
     public Trajectory(){
@@ -24,7 +28,7 @@ public class Trajectory {
         tripID = -1;
         pseudonymID = -1;
         k_anonymity = 1;
-        merged_ids = new HashSet<>();
+        merged_ids = null;
     }
 
     public Trajectory(final int uid, final int tid, List<ComplexPoint> seq) {
@@ -33,7 +37,7 @@ public class Trajectory {
         tripID = tid;
         pseudonymID = -1;
         k_anonymity = 1;
-        merged_ids = new HashSet<>();
+        merged_ids = null;
     }
 
     public Trajectory(final Trajectory trip) {
@@ -42,7 +46,7 @@ public class Trajectory {
         tripID = trip.tripID;
         pseudonymID = -1;
         k_anonymity = trip.k_anonymity;
-        merged_ids = new HashSet<>(trip.merged_ids);
+        merged_ids = trip.merged_ids;   // immutable, shared
     }
 
     public int get_userId() {
@@ -82,14 +86,48 @@ public class Trajectory {
 
     public void set_pointSeq(List<ComplexPoint> points) {
         pointSeq = points;
+        invalidate_features();
+    }
+
+    // the bounding box and time span of the points
+    // a race only computes them twice, the result is immutable
+    public Features get_features() {
+        Features f = features;
+        if (f == null) {
+            f = new Features(pointSeq);
+            features = f;
+        }
+        return f;
+    }
+
+    // the cell id of each point in the grid (-1 if out of it), cached for the last grid
+    public long[] get_gridIds(final Grid grid) {
+        Features.Cells c = cells;
+        if (c == null || c.grid != grid) {
+            c = new Features.Cells(grid, pointSeq);
+            cells = c;
+        }
+        return c.ids;
+    }
+
+    // to be called after the points in pointSeq have been changed in place
+    public void invalidate_features() {
+        features = null;
+        cells = null;
     }
 
     public boolean isMerged() {
-        return !merged_ids.isEmpty();
+        return merged_ids != null;
     }
 
-    public Set<Integer> get_mergedIds() {
-        return merged_ids;
+    // # of the merged ids, 0 if not merged
+    public int get_mergedNum() {
+        return merged_ids == null ? 0 : merged_ids.size;
+    }
+
+    // the merged ids in ascending order, materialized on each call
+    public int[] get_mergedIds() {
+        return merged_ids == null ? new int[0] : merged_ids.toSortedArray();
     }
 
     public int get_K() {
@@ -100,22 +138,52 @@ public class Trajectory {
         k_anonymity = _k;
     }
 
+    // the members of a and b, which are disjoint, joined in O(1)
     public void set_mergedIds(Trajectory a, Trajectory b) {
-        if(a.isMerged()){
-            merged_ids.addAll(a.merged_ids);
-        }
-        else {
-            merged_ids.add(a.get_trajectoryId());
+        merged_ids = new Members(a.isMerged() ? a.merged_ids : new Members(a.get_trajectoryId()),
+                b.isMerged() ? b.merged_ids : new Members(b.get_trajectoryId()));
+    }
+
+    // the merged ids as a persistent binary tree: a leaf is one id, an inner node the union of its children
+    // merging shares both parents instead of copying their ids
+    private static final class Members {
+        final int id;       // only for a leaf
+        final Members left, right;
+        final int size;
+
+        Members(final int id) {
+            this.id = id;
+            left = right = null;
+            size = 1;
         }
-        if(b.isMerged()){
-            merged_ids.addAll(b.merged_ids);
+
+        Members(final Members left, final Members right) {
+            this.id = -1;
+            this.left = left;
+            this.right = right;
+            size = left.size + right.size;
         }
-        else {
-            merged_ids.add(b.get_trajectoryId());
+
+        // the ids of all leaves, walked without recursion since a tree may be as deep as # of merges
+        int[] toSortedArray() {
+            int[] ids = new int[size];
+            int num = 0;
+            Deque<Members> stack = new ArrayDeque<>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                Members node = stack.pop();
+                if (node.left == null) {
+                    ids[num++] = node.id;
+                } else {
+                    stack.push(node.right);
+                    stack.push(node.left);
+                }
+            }
+            Arrays.sort(ids);
+            return ids;
         }
     }
 
-
     @Override
     public int hashCode() {
         int result = 0;